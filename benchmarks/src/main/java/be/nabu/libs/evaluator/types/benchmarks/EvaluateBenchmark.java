@@ -0,0 +1,80 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.evaluator.types.benchmarks;
+
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import be.nabu.libs.evaluator.EvaluationException;
+import be.nabu.libs.evaluator.PathAnalyzer;
+import be.nabu.libs.evaluator.QueryParser;
+import be.nabu.libs.evaluator.types.api.TypeOperation;
+import be.nabu.libs.evaluator.types.benchmarks.Model.ContextType;
+import be.nabu.libs.evaluator.types.operations.TypeOperationCompiler;
+import be.nabu.libs.evaluator.types.operations.TypesOperationProvider;
+import be.nabu.libs.types.api.ComplexContent;
+
+/**
+ * Evaluating an operation against a context, the operation and context are shared by all the benchmark threads
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class EvaluateBenchmark {
+
+	@Param({ Expressions.ARITHMETIC, Expressions.COMPARISON, Expressions.FILTER, Expressions.MEMBERSHIP, Expressions.REGEX, Expressions.METHOD })
+	public String query;
+	
+	@Param({ "BEAN", "STRUCTURE" })
+	public ContextType contextType;
+	
+	@Param({ "10", "1000", "100000" })
+	public int listSize;
+	
+	/**
+	 * Whether or not the operation is run through the compiler first
+	 */
+	@Param({ "false", "true" })
+	public boolean compiled;
+	
+	private TypeOperation operation;
+	private ComplexContent context;
+	
+	@Setup
+	public void setup() throws ParseException {
+		operation = (TypeOperation) new PathAnalyzer<ComplexContent>(new TypesOperationProvider()).analyze(QueryParser.getInstance().parse(query));
+		context = Model.newContext(contextType, listSize);
+		if (compiled) {
+			operation = TypeOperationCompiler.compile(operation, context.getType());
+		}
+	}
+	
+	@Benchmark
+	public Object evaluate() throws EvaluationException {
+		return operation.evaluate(context);
+	}
+}
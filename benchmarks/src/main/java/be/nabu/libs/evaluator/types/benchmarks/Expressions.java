@@ -0,0 +1,30 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.evaluator.types.benchmarks;
+
+/**
+ * The expressions that are benchmarked, one per kind of operation
+ */
+public class Expressions {
+	public static final String ARITHMETIC = "test/myInteger + 2 - myDouble";
+	public static final String COMPARISON = "test/myInteger > 3 && myDouble < 6";
+	public static final String FILTER = "list[myInteger > 3]/myInteger";
+	public static final String MEMBERSHIP = "test # list";
+	public static final String REGEX = "test/name ~ '[a-z]+'";
+	public static final String METHOD = "be.nabu.libs.evaluator.types.benchmarks.Functions.score(myDouble)";
+}
@@ -0,0 +1,153 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.evaluator.types.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import be.nabu.libs.property.ValueImpl;
+import be.nabu.libs.types.SimpleTypeWrapperFactory;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.api.SimpleTypeWrapper;
+import be.nabu.libs.types.base.ComplexElementImpl;
+import be.nabu.libs.types.base.SimpleElementImpl;
+import be.nabu.libs.types.java.BeanInstance;
+import be.nabu.libs.types.java.BeanType;
+import be.nabu.libs.types.properties.MaxOccursProperty;
+import be.nabu.libs.types.structure.Structure;
+
+/**
+ * The same data is available as java beans and as structures so both kinds of contexts can be compared
+ */
+public class Model {
+	
+	public enum ContextType {
+		BEAN, STRUCTURE
+	}
+	
+	public static ComplexContent newContext(ContextType contextType, int listSize) {
+		return contextType == ContextType.BEAN ? newBean(listSize) : newStructure(listSize);
+	}
+	
+	public static ComplexType newType(ContextType contextType) {
+		return contextType == ContextType.BEAN ? new BeanType<Root>(Root.class) : newRootStructure(newItemStructure());
+	}
+	
+	private static ComplexContent newBean(int listSize) {
+		Root root = new Root(new Item(5, "five"), 5.5);
+		for (int i = 0; i < listSize; i++) {
+			root.getList().add(new Item(i % 10, "item" + i));
+		}
+		return new BeanInstance<Root>(root);
+	}
+	
+	private static ComplexContent newStructure(int listSize) {
+		Structure item = newItemStructure();
+		Structure root = newRootStructure(item);
+		ComplexContent content = root.newInstance();
+		content.set("myDouble", 5.5);
+		content.set("test", newItem(item, 5, "five"));
+		for (int i = 0; i < listSize; i++) {
+			content.set("list[" + i + "]", newItem(item, i % 10, "item" + i));
+		}
+		return content;
+	}
+	
+	private static ComplexContent newItem(Structure item, int myInteger, String name) {
+		ComplexContent content = item.newInstance();
+		content.set("myInteger", myInteger);
+		content.set("name", name);
+		return content;
+	}
+	
+	private static Structure newItemStructure() {
+		SimpleTypeWrapper wrapper = SimpleTypeWrapperFactory.getInstance().getWrapper();
+		Structure item = new Structure();
+		item.setName("item");
+		item.add(new SimpleElementImpl<Integer>("myInteger", wrapper.wrap(Integer.class), item));
+		item.add(new SimpleElementImpl<String>("name", wrapper.wrap(String.class), item));
+		return item;
+	}
+	
+	private static Structure newRootStructure(Structure item) {
+		SimpleTypeWrapper wrapper = SimpleTypeWrapperFactory.getInstance().getWrapper();
+		Structure root = new Structure();
+		root.setName("root");
+		root.add(new SimpleElementImpl<Double>("myDouble", wrapper.wrap(Double.class), root));
+		root.add(new ComplexElementImpl("test", item, root));
+		root.add(new ComplexElementImpl("list", item, root, new ValueImpl<Integer>(MaxOccursProperty.getInstance(), 0)));
+		return root;
+	}
+	
+	public static class Item {
+		private int myInteger;
+		private String name;
+		
+		public Item(int myInteger, String name) {
+			this.myInteger = myInteger;
+			this.name = name;
+		}
+		public int getMyInteger() {
+			return myInteger;
+		}
+		public void setMyInteger(int myInteger) {
+			this.myInteger = myInteger;
+		}
+		public String getName() {
+			return name;
+		}
+		public void setName(String name) {
+			this.name = name;
+		}
+		@Override
+		public boolean equals(Object object) {
+			return object instanceof Item && ((Item) object).myInteger == myInteger;
+		}
+		@Override
+		public int hashCode() {
+			return myInteger;
+		}
+	}
+	
+	public static class Root {
+		private double myDouble;
+		private Item test;
+		private List<Item> list = new ArrayList<Item>();
+		
+		public Root(Item test, double myDouble) {
+			this.test = test;
+			this.myDouble = myDouble;
+		}
+		public double getMyDouble() {
+			return myDouble;
+		}
+		public void setMyDouble(double myDouble) {
+			this.myDouble = myDouble;
+		}
+		public Item getTest() {
+			return test;
+		}
+		public void setTest(Item test) {
+			this.test = test;
+		}
+		public List<Item> getList() {
+			return list;
+		}
+	}
+}
@@ -17,19 +17,34 @@
 
 package be.nabu.libs.evaluator.types.accessors;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import be.nabu.libs.evaluator.EvaluationException;
 import be.nabu.libs.evaluator.api.ListableContextAccessor;
 import be.nabu.libs.evaluator.api.WritableContextAccessor;
 import be.nabu.libs.types.TypeUtils;
 import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.ComplexType;
 import be.nabu.libs.types.api.Element;
 
 public class ComplexContentAccessor implements ListableContextAccessor<ComplexContent>, WritableContextAccessor<ComplexContent> {
 
+	/**
+	 * The names of the children per type.
+	 * Types are matched on identity and only weakly referenced so types that are no longer used (e.g. dynamically defined ones) can be collected.
+	 * Lookups don't lock, the collected types are purged whenever a new type is added.
+	 */
+	private static final ConcurrentMap<TypeKey, Collection<String>> childNames = new ConcurrentHashMap<TypeKey, Collection<String>>();
+	private static final ReferenceQueue<ComplexType> collected = new ReferenceQueue<ComplexType>();
+
 	@Override
 	public Class<ComplexContent> getContextType() {
 		return ComplexContent.class;
@@ -51,16 +66,73 @@ public class ComplexContentAccessor implements ListableContextAccessor<ComplexCo
 		return context.get(name);
 	}
 
+	/**
+	 * Note that the returned collection is shared and can not be modified
+	 */
 	@Override
 	public Collection<String> list(ComplexContent object) {
-		List<String> names = new ArrayList<String>();
-		if (object.getType() != null) {
-			for (Element<?> element : TypeUtils.getAllChildren(object.getType())) {
-				names.add(element.getName());
+		ComplexType type = object.getType();
+		if (type == null) {
+			return Collections.emptyList();
+		}
+		Collection<String> names = childNames.get(new TypeKey(type));
+		if (names == null) {
+			Collection<Element<?>> children = TypeUtils.getAllChildren(type);
+			List<String> list = new ArrayList<String>(children.size());
+			for (Element<?> element : children) {
+				list.add(element.getName());
 			}
+			names = Collections.unmodifiableList(list);
+			purge();
+			childNames.put(new TypeKey(type, collected), names);
 		}
 		return names;
 	}
+	
+	/**
+	 * Removes the cached child names for a type, use this when the definition of the type has changed
+	 */
+	public static void invalidate(ComplexType type) {
+		childNames.remove(new TypeKey(type));
+	}
+	
+	private static void purge() {
+		Reference<? extends ComplexType> reference;
+		while ((reference = collected.poll()) != null) {
+			childNames.remove(reference);
+		}
+	}
+	
+	/**
+	 * A weak reference to a type that is equal to any other key for the same instance.
+	 * Keys that are only used for a lookup are never queued, the caller keeps the type reachable while it looks it up.
+	 */
+	private static final class TypeKey extends WeakReference<ComplexType> {
+		private final int hashCode;
+		
+		TypeKey(ComplexType type) {
+			this(type, null);
+		}
+		
+		TypeKey(ComplexType type, ReferenceQueue<ComplexType> queue) {
+			super(type, queue);
+			this.hashCode = System.identityHashCode(type);
+		}
+		
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+		
+		@Override
+		public boolean equals(Object object) {
+			if (object == this) {
+				return true;
+			}
+			Object type = get();
+			return object instanceof TypeKey && type != null && ((TypeKey) object).get() == type;
+		}
+	}
 
 	@Override
 	public void set(ComplexContent context, String name, Object value) throws EvaluationException {
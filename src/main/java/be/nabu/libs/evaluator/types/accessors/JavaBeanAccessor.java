@@ -17,6 +17,15 @@
 
 package be.nabu.libs.evaluator.types.accessors;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.ref.SoftReference;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 import be.nabu.libs.evaluator.EvaluationException;
 import be.nabu.libs.evaluator.api.ContextAccessor;
 import be.nabu.libs.evaluator.api.WritableContextAccessor;
@@ -27,6 +36,26 @@ import be.nabu.libs.types.java.BeanResolver;
 
 public class JavaBeanAccessor implements ContextAccessor<Object>, WritableContextAccessor<Object> {
 
+	/**
+	 * The resolved type and property handles are calculated once per class.
+	 * They reference the class itself so they are only softly reachable, otherwise the class (and its classloader) could never be unloaded.
+	 */
+	private static final ClassValue<SoftReference<BeanAccess>> accessors = new ClassValue<SoftReference<BeanAccess>>() {
+		@Override
+		protected SoftReference<BeanAccess> computeValue(Class<?> type) {
+			return new SoftReference<BeanAccess>(new BeanAccess(type));
+		}
+	};
+	
+	private static BeanAccess getAccess(Class<?> clazz) {
+		BeanAccess access = accessors.get(clazz).get();
+		if (access == null) {
+			access = new BeanAccess(clazz);
+			accessors.remove(clazz);
+		}
+		return access;
+	}
+	
 	@Override
 	public Class<Object> getContextType() {
 		return Object.class;
@@ -34,25 +63,157 @@ public class JavaBeanAccessor implements ContextAccessor<Object>, WritableContex
 
 	@Override
 	public boolean has(Object context, String name) throws EvaluationException {
-		DefinedType type = BeanResolver.getInstance().resolve(context.getClass());
-		return type instanceof ComplexType && ((ComplexType) type).get(name) != null;
+		ComplexType type = getAccess(context.getClass()).getType();
+		return type != null && type.get(name) != null;
 	}
 
 	@SuppressWarnings("rawtypes")
 	@Override
 	public Object get(Object context, String name) throws EvaluationException {
-		BeanInstance beanInstance = new BeanInstance(context);
+		BeanAccess access = getAccess(context.getClass());
 		// if it doesn't exist, don't try to resolve it, it will fail...
-		if (beanInstance.getType().get(name) == null) {
+		if (access.getType() == null || access.getType().get(name) == null) {
 			return null;
 		}
-		return beanInstance.get(name);
+		MethodHandle getter = access.getGetter(name);
+		if (getter != null) {
+			try {
+				return (Object) getter.invokeExact(context);
+			}
+			catch (Throwable e) {
+				throw newEvaluationException("Could not get '" + name + "' from: " + context.getClass().getName(), e);
+			}
+		}
+		return new BeanInstance(context).get(name);
 	}
 
 	@SuppressWarnings("rawtypes")
 	@Override
 	public void set(Object context, String name, Object value) throws EvaluationException {
+		MethodHandle setter = value == null ? null : getAccess(context.getClass()).getSetter(name, value.getClass());
+		if (setter != null) {
+			try {
+				setter.invokeExact(context, value);
+				return;
+			}
+			catch (Throwable e) {
+				throw newEvaluationException("Could not set '" + name + "' on: " + context.getClass().getName(), e);
+			}
+		}
 		new BeanInstance(context).set(name, value);
 	}
-
+	
+	private static EvaluationException newEvaluationException(String message, Throwable cause) {
+		EvaluationException exception = new EvaluationException(message);
+		exception.initCause(cause);
+		return exception;
+	}
+	
+	/**
+	 * Only properties of these types are accessed directly, for everything else the bean instance decides how the value is presented or converted
+	 */
+	private static boolean isSimple(Class<?> clazz) {
+		return clazz.isPrimitive() || Number.class.isAssignableFrom(clazz) || String.class.equals(clazz) || Boolean.class.equals(clazz);
+	}
+	
+	private static class BeanAccess {
+		
+		private static final MethodHandle NONE = MethodHandles.constant(Object.class, null);
+		
+		private final Class<?> clazz;
+		private final ComplexType type;
+		private final ConcurrentMap<String, MethodHandle> getters = new ConcurrentHashMap<String, MethodHandle>();
+		private final ConcurrentMap<String, Setter> setters = new ConcurrentHashMap<String, Setter>();
+		
+		BeanAccess(Class<?> clazz) {
+			this.clazz = clazz;
+			DefinedType resolved = BeanResolver.getInstance().resolve(clazz);
+			this.type = resolved instanceof ComplexType ? (ComplexType) resolved : null;
+		}
+		
+		ComplexType getType() {
+			return type;
+		}
+		
+		MethodHandle getGetter(String name) {
+			MethodHandle getter = getters.get(name);
+			if (getter == null) {
+				Method method = getReadMethod(name);
+				getter = method == null || !isSimple(method.getReturnType()) ? NONE : unreflect(method, MethodType.methodType(Object.class, Object.class));
+				getters.put(name, getter);
+			}
+			return getter == NONE ? null : getter;
+		}
+		
+		MethodHandle getSetter(String name, Class<?> valueClass) {
+			Setter setter = setters.get(name);
+			if (setter == null) {
+				Method method = getWriteMethod(name);
+				setter = method == null || !isSimple(method.getParameterTypes()[0])
+					? new Setter(NONE, null)
+					: new Setter(unreflect(method, MethodType.methodType(void.class, Object.class, Object.class)), MethodType.methodType(method.getParameterTypes()[0]).wrap().returnType());
+				setters.put(name, setter);
+			}
+			// the value must fit as is, otherwise it needs to be converted first
+			return setter.handle == NONE || !setter.valueClass.isAssignableFrom(valueClass) ? null : setter.handle;
+		}
+		
+		/**
+		 * The methods are derived from the element names in the bean type so we access exactly the properties the type exposes
+		 */
+		private Method getReadMethod(String name) {
+			if (type == null || type.get(name) == null) {
+				return null;
+			}
+			for (String prefix : new String[] { "get", "is" }) {
+				try {
+					Method method = clazz.getMethod(prefix + capitalize(name));
+					if (!Modifier.isStatic(method.getModifiers()) && !void.class.equals(method.getReturnType()) && (prefix.equals("get") || boolean.class.equals(method.getReturnType()))) {
+						return method;
+					}
+				}
+				catch (NoSuchMethodException e) {
+					// try the next prefix
+				}
+			}
+			return null;
+		}
+		
+		private Method getWriteMethod(String name) {
+			Method read = getReadMethod(name);
+			if (read == null) {
+				return null;
+			}
+			try {
+				Method method = clazz.getMethod("set" + capitalize(name), read.getReturnType());
+				return Modifier.isStatic(method.getModifiers()) ? null : method;
+			}
+			catch (NoSuchMethodException e) {
+				return null;
+			}
+		}
+		
+		private static String capitalize(String name) {
+			return name.isEmpty() ? name : Character.toUpperCase(name.charAt(0)) + name.substring(1);
+		}
+		
+		private static MethodHandle unreflect(Method method, MethodType type) {
+			try {
+				return MethodHandles.publicLookup().unreflect(method).asType(type);
+			}
+			catch (IllegalAccessException e) {
+				return NONE;
+			}
+		}
+	}
+	
+	private static class Setter {
+		private final MethodHandle handle;
+		private final Class<?> valueClass;
+		
+		Setter(MethodHandle handle, Class<?> valueClass) {
+			this.handle = handle;
+			this.valueClass = valueClass;
+		}
+	}
 }
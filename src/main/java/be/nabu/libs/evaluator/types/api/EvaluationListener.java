@@ -0,0 +1,54 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.evaluator.types.api;
+
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.ComplexType;
+
+/**
+ * Receives measurements from the typed operations, register one with the EvaluationListenerFactory.
+ * All the methods do nothing by default so a listener only implements what it is interested in.
+ * The methods are called synchronously from the evaluating thread and should be cheap (e.g. increment a counter or record in a histogram).
+ */
+public interface EvaluationListener {
+	/**
+	 * Called after every evaluation of a classic, method or variable operation, nested operations report separately.
+	 * @param failed whether the evaluation threw an exception
+	 */
+	public default void evaluated(TypeOperation operation, ComplexContent context, long nanos, boolean failed) {
+		// no-op
+	}
+	/**
+	 * Called when an operation is validated against a type by one of the caches (the validation cache or the operation cache of the provider)
+	 */
+	public default void validated(TypeOperation operation, ComplexType context, long nanos, int messages) {
+		// no-op
+	}
+	/**
+	 * Called for every lookup in a named cache, e.g. "validation", "operation", "epsilon" or "resolution"
+	 */
+	public default void cacheAccessed(String cache, boolean hit) {
+		// no-op
+	}
+	/**
+	 * Called when typing information has to be resolved during evaluation, e.g. to find the epsilon of a double comparison or to type an absolute path against the runtime root
+	 */
+	public default void resolvedAtRuntime(TypeOperation operation, ComplexType context) {
+		// no-op
+	}
+}
@@ -34,4 +34,26 @@ public interface TypeOperation extends Operation<ComplexContent> {
 	public default Value<?>[] getReturnProperties(ComplexType context) { 
 		return null;
 	};
+	/**
+	 * The variants with a typing context are used when validating or typing a child operation so it knows where it is in the tree.
+	 * By default they ignore the typing context, the operations in this package implement the variants without it by starting a new typing context.
+	 */
+	public default List<Validation<?>> validate(ComplexType context, TypingContext typing) {
+		return validate(context);
+	}
+	public default Type getReturnType(ComplexType context, TypingContext typing) {
+		return getReturnType(context);
+	}
+	public default CollectionHandlerProvider<?, ?> getReturnCollectionHandler(ComplexType context, TypingContext typing) {
+		return getReturnCollectionHandler(context);
+	}
+	public default Value<?>[] getReturnProperties(ComplexType context, TypingContext typing) {
+		return getReturnProperties(context);
+	}
+	/**
+	 * Clears any typing information that was cached in this operation (and its children), use this when a type definition has changed
+	 */
+	public default void invalidate() {
+		// nothing cached by default
+	}
 }
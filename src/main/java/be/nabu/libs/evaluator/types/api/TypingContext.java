@@ -0,0 +1,83 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.evaluator.types.api;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import be.nabu.libs.types.api.ComplexType;
+
+/**
+ * Keeps track of the types we descended into while validating or typing an operation.
+ * The first type is the root that absolute paths are resolved against, the last one is the current context (e.g. for $this).
+ * A typing context belongs to a single validation or typing run and is not thread safe, a new one is created for every run.
+ */
+public class TypingContext {
+	
+	private List<ComplexType> types = new ArrayList<ComplexType>();
+	
+	/**
+	 * The types that were looked into during the run, matched on identity
+	 */
+	private Set<ComplexType> dependencies = Collections.newSetFromMap(new IdentityHashMap<ComplexType, Boolean>());
+	
+	public ComplexType getRoot() {
+		return types.isEmpty() ? null : types.get(0);
+	}
+	
+	public ComplexType getCurrent() {
+		return types.isEmpty() ? null : types.get(types.size() - 1);
+	}
+	
+	public boolean isEmpty() {
+		return types.isEmpty();
+	}
+	
+	public void push(ComplexType type) {
+		types.add(type);
+	}
+	
+	public ComplexType pop() {
+		return types.remove(types.size() - 1);
+	}
+	
+	/**
+	 * Records that the outcome of the run depends on the definition of the given type
+	 */
+	public void addDependency(ComplexType type) {
+		if (type != null) {
+			dependencies.add(type);
+		}
+	}
+	
+	public Set<ComplexType> getDependencies() {
+		return Collections.unmodifiableSet(dependencies);
+	}
+	
+	/**
+	 * A new typing context at the same position in the tree that records its own dependencies, e.g. to find out which types a single (cached) resolution depends on
+	 */
+	public TypingContext copy() {
+		TypingContext copy = new TypingContext();
+		copy.types.addAll(types);
+		return copy;
+	}
+}
@@ -0,0 +1,127 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.evaluator.types.operations;
+
+import java.util.BitSet;
+import java.util.List;
+
+import be.nabu.libs.evaluator.EvaluationException;
+import be.nabu.libs.evaluator.types.api.TypeOperation;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.ComplexType;
+
+/**
+ * Evaluates one operation against a lot of contexts, for example a predicate against all the records in a list.
+ * The operation is compiled once for every type it encounters (usually all the records have the same type, but a few types can alternate) after which it is a tight loop over the contexts.
+ * An instance can be shared between threads.
+ */
+public class BatchEvaluator {
+	
+	private final TypeOperation operation;
+	/**
+	 * The types we compiled for, this is only a shortcut so we don't hit the compiler for every context
+	 */
+	private final TypeCache<Boolean> compiled = new TypeCache<Boolean>();
+	
+	public BatchEvaluator(TypeOperation operation) {
+		this.operation = operation;
+	}
+	
+	/**
+	 * Returns the result for every context, in the same order
+	 */
+	public Object[] evaluate(List<? extends ComplexContent> contexts) throws EvaluationException {
+		EvaluationScope scope = open();
+		try {
+			Object [] results = new Object[contexts.size()];
+			for (int i = 0; i < results.length; i++) {
+				results[i] = evaluate(contexts.get(i));
+			}
+			return results;
+		}
+		finally {
+			if (scope != null) {
+				scope.close();
+			}
+		}
+	}
+	
+	/**
+	 * Returns the indexes of the contexts for which the operation evaluates to true
+	 */
+	public BitSet filter(List<? extends ComplexContent> contexts) throws EvaluationException {
+		EvaluationScope scope = open();
+		try {
+			BitSet matches = new BitSet(contexts.size());
+			for (int i = 0; i < contexts.size(); i++) {
+				if (Boolean.TRUE.equals(evaluate(contexts.get(i)))) {
+					matches.set(i);
+				}
+			}
+			return matches;
+		}
+		finally {
+			if (scope != null) {
+				scope.close();
+			}
+		}
+	}
+	
+	/**
+	 * Returns for every context whether or not the operation evaluates to true
+	 */
+	public boolean[] test(List<? extends ComplexContent> contexts) throws EvaluationException {
+		EvaluationScope scope = open();
+		try {
+			boolean [] matches = new boolean[contexts.size()];
+			for (int i = 0; i < matches.length; i++) {
+				matches[i] = Boolean.TRUE.equals(evaluate(contexts.get(i)));
+			}
+			return matches;
+		}
+		finally {
+			if (scope != null) {
+				scope.close();
+			}
+		}
+	}
+	
+	/**
+	 * A side effect free operation can not change the contexts so the whole batch is one {@link EvaluationScope}
+	 */
+	private EvaluationScope open() {
+		return TypeOperationCompiler.isSideEffectFree(operation) ? EvaluationScope.open() : null;
+	}
+	
+	private Object evaluate(ComplexContent context) throws EvaluationException {
+		if (context != null) {
+			ComplexType type = context.getType();
+			boolean hit = compiled.get(type, null, 0) != null;
+			EvaluationListenerFactory.cacheAccessed("compilation", hit);
+			if (!hit) {
+				TypeOperationCompiler.compile(operation, type);
+				compiled.put(type, null, 0, true);
+			}
+		}
+		return operation.evaluate(context);
+	}
+	
+	public TypeOperation getOperation() {
+		return operation;
+	}
+}
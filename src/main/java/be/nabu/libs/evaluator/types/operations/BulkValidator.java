@@ -0,0 +1,181 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.evaluator.types.operations;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+import be.nabu.libs.evaluator.types.api.TypeOperation;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.validator.api.Validation;
+import be.nabu.libs.validator.api.ValidationMessage;
+import be.nabu.libs.validator.api.ValidationMessage.Severity;
+
+/**
+ * Validates a lot of expressions (e.g. a rule catalog) at once by spreading them over an executor.
+ * The expressions are parsed and validated through an operation cache of their own, it has the settings of the given provider and grows to hold the largest catalog.
+ * This way a large catalog does not push the queries of the application out of the cache of the provider while the analyzed operations can still be reused afterwards, either from the results or through {@link #getProvider()}.
+ * Validation does not share any mutable state between operations (the typing context is per run) so the rules can safely be validated concurrently.
+ */
+public class BulkValidator {
+
+	private final TypesOperationProvider provider;
+	private final Executor executor;
+	
+	/**
+	 * Validates on the common fork join pool, validation is short and cpu bound so that is usually the best fit.
+	 * The pool is however shared with the parallel filters (and parallel streams) of the application, validating a large catalog while those run makes them compete for the same threads.
+	 * Use {@link #BulkValidator(TypesOperationProvider, Executor)} with a dedicated executor if that matters.
+	 */
+	public BulkValidator(TypesOperationProvider provider) {
+		this(provider, ForkJoinPool.commonPool());
+	}
+	
+	public BulkValidator(TypesOperationProvider provider, Executor executor) {
+		this.provider = provider.copy();
+		this.executor = executor;
+	}
+	
+	/**
+	 * The provider that holds the operations of the validated catalogs
+	 */
+	public TypesOperationProvider getProvider() {
+		return provider;
+	}
+	
+	/**
+	 * The results are returned in the order of the rules
+	 */
+	public Report validate(List<Rule> rules) {
+		if (rules.size() > provider.getMaxCachedOperations()) {
+			provider.setMaxCachedOperations(rules.size());
+		}
+		long started = System.nanoTime();
+		List<CompletableFuture<Result>> futures = new ArrayList<CompletableFuture<Result>>(rules.size());
+		for (final Rule rule : rules) {
+			futures.add(CompletableFuture.supplyAsync(() -> validate(rule), executor));
+		}
+		List<Result> results = new ArrayList<Result>(rules.size());
+		for (CompletableFuture<Result> future : futures) {
+			results.add(future.join());
+		}
+		return new Report(results, System.nanoTime() - started);
+	}
+	
+	private Result validate(Rule rule) {
+		long started = System.nanoTime();
+		TypeOperation operation = null;
+		List<Validation<?>> validations;
+		try {
+			TypesOperationProvider.CachedOperation cached = provider.getCachedOperation(rule.getQuery(), rule.getType());
+			operation = cached.operation;
+			validations = cached.validations;
+		}
+		catch (ParseException e) {
+			validations = Collections.<Validation<?>>singletonList(new ValidationMessage(Severity.ERROR, "Could not parse '" + rule.getQuery() + "': " + e.getMessage()));
+		}
+		catch (Exception e) {
+			validations = Collections.<Validation<?>>singletonList(new ValidationMessage(Severity.ERROR, "Could not validate '" + rule.getQuery() + "': " + e.getMessage()));
+		}
+		return new Result(rule, operation, validations, System.nanoTime() - started);
+	}
+	
+	public static class Rule {
+		private final String query;
+		private final ComplexType type;
+		
+		public Rule(String query, ComplexType type) {
+			this.query = query;
+			this.type = type;
+		}
+		public String getQuery() {
+			return query;
+		}
+		public ComplexType getType() {
+			return type;
+		}
+	}
+	
+	public static class Result {
+		private final Rule rule;
+		private final TypeOperation operation;
+		private final List<Validation<?>> validations;
+		private final long nanos;
+		
+		Result(Rule rule, TypeOperation operation, List<Validation<?>> validations, long nanos) {
+			this.rule = rule;
+			this.operation = operation;
+			this.validations = validations;
+			this.nanos = nanos;
+		}
+		public Rule getRule() {
+			return rule;
+		}
+		/**
+		 * This is null if the query could not be parsed
+		 */
+		public TypeOperation getOperation() {
+			return operation;
+		}
+		public List<Validation<?>> getValidations() {
+			return validations;
+		}
+		public boolean isValid() {
+			return validations.isEmpty();
+		}
+		/**
+		 * The time it took to parse and validate the rule, this is close to 0 if it was already cached
+		 */
+		public long getNanos() {
+			return nanos;
+		}
+	}
+	
+	public static class Report {
+		private final List<Result> results;
+		private final long nanos;
+		
+		Report(List<Result> results, long nanos) {
+			this.results = Collections.unmodifiableList(results);
+			this.nanos = nanos;
+		}
+		public List<Result> getResults() {
+			return results;
+		}
+		public List<Result> getInvalid() {
+			List<Result> invalid = new ArrayList<Result>();
+			for (Result result : results) {
+				if (!result.isValid()) {
+					invalid.add(result);
+				}
+			}
+			return invalid;
+		}
+		/**
+		 * The wall clock time for the whole catalog
+		 */
+		public long getNanos() {
+			return nanos;
+		}
+	}
+}
@@ -0,0 +1,633 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.evaluator.types.operations;
+
+import java.util.Arrays;
+import java.util.List;
+
+import be.nabu.libs.evaluator.EvaluationException;
+import be.nabu.libs.evaluator.QueryPart;
+import be.nabu.libs.evaluator.types.api.TypeOperation;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.api.SimpleType;
+import be.nabu.libs.types.api.Type;
+import be.nabu.libs.types.java.BeanType;
+
+/**
+ * Compiles a classic operation into evaluators that work directly on the values instead of going through the converter.
+ * The static types of the operands determine which evaluator is used, the actual values are still checked at runtime and if they are not what we expected, we fall back to the regular evaluation.
+ * Because such a fallback evaluates the operands again, only operations without side effects (so no method calls) are compiled.
+ */
+final class ClassicCompiler {
+
+	private ClassicCompiler() {
+		// static only
+	}
+	
+	static Evaluator compile(TypeClassicOperation operation, ComplexType context) {
+		// we can't draw any conclusions for objects
+		if (context instanceof BeanType && Object.class.equals(((BeanType<?>) context).getBeanClass())) {
+			return null;
+		}
+		if (!TypeOperationCompiler.isSideEffectFree(operation)) {
+			return null;
+		}
+		List<QueryPart> parts = operation.getParts();
+		try {
+			if (parts.size() == 2 && parts.get(0).getType() == QueryPart.Type.NOT) {
+				Evaluator operand = getOperand(parts.get(1), context);
+				return operand != null && Boolean.class.equals(getOperandClass(parts.get(1), context)) ? new Not(operation, operand) : null;
+			}
+			// we only compile a sequence of operands that are separated by operators of the same kind
+			if (parts.size() < 3 || parts.size() % 2 == 0) {
+				return null;
+			}
+			QueryPart.Type operator = parts.get(1).getType();
+			Evaluator[] operands = new Evaluator[(parts.size() + 1) / 2];
+			QueryPart.Type[] operators = new QueryPart.Type[operands.length];
+			Class<?>[] classes = new Class<?>[operands.length];
+			for (int i = 0; i < parts.size(); i++) {
+				if (i % 2 == 1) {
+					operators[(i + 1) / 2] = parts.get(i).getType();
+					if (operators[(i + 1) / 2] != operator && !(isAdditive(operator) && isAdditive(operators[(i + 1) / 2])) && !(isMultiplicative(operator) && isMultiplicative(operators[(i + 1) / 2]))) {
+						return null;
+					}
+				}
+				else {
+					operands[i / 2] = getOperand(parts.get(i), context);
+					classes[i / 2] = getOperandClass(parts.get(i), context);
+					if (operands[i / 2] == null || classes[i / 2] == null) {
+						return null;
+					}
+				}
+			}
+			switch (operator) {
+				case LOGICAL_AND:
+				case LOGICAL_OR:
+					for (Class<?> clazz : classes) {
+						if (!Boolean.class.equals(clazz)) {
+							return null;
+						}
+					}
+					return newLogical(operation, operands, operator == QueryPart.Type.LOGICAL_AND);
+				case EQUALS:
+				case NOT_EQUALS:
+				case LESSER:
+				case LESSER_OR_EQUALS:
+				case GREATER:
+				case GREATER_OR_EQUALS:
+					if (operands.length != 2) {
+						return null;
+					}
+					ComparisonMode mode = getComparisonMode(operator, classes[0], classes[1]);
+					return mode == null ? null : new Comparison(operation, operands[0], operands[1], operator, mode);
+				case ADD:
+				case SUBSTRACT:
+				case MULTIPLY:
+				case DIVIDE:
+				case MOD:
+					return isArithmetic(operators, classes) ? new Arithmetic(operation, operands, operators, classes[0]) : null;
+				default:
+					return null;
+			}
+		}
+		// if we can't type it, we can't compile it
+		catch (Exception e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * The operands of an "and" or "or" chain are all side effect free booleans at this point so we can evaluate them in any order, the cheapest ones go first.
+	 * The relative order of operands with the same cost is kept.
+	 */
+	private static Logical newLogical(TypeClassicOperation operation, Evaluator[] operands, boolean and) {
+		List<QueryPart> parts = operation.getParts();
+		Integer[] order = new Integer[operands.length];
+		int[] costs = new int[operands.length];
+		for (int i = 0; i < operands.length; i++) {
+			order[i] = i;
+			costs[i] = getCost(parts.get(i * 2));
+		}
+		Arrays.sort(order, (first, second) -> Integer.compare(costs[first], costs[second]));
+		Evaluator[] sorted = new Evaluator[operands.length];
+		boolean reordered = false;
+		for (int i = 0; i < order.length; i++) {
+			sorted[i] = operands[order[i]];
+			reordered |= order[i] != i;
+		}
+		return new Logical(operation, sorted, and, reordered);
+	}
+	
+	/**
+	 * A rough static estimate of how expensive it is to evaluate an operand: constants are free, every step in a path costs something and subqueries, unsupported operators and method calls cost a lot more.
+	 */
+	static int getCost(QueryPart part) {
+		if (part.getType().isNative()) {
+			return 0;
+		}
+		else if (part.getType() != QueryPart.Type.OPERATION) {
+			return 1;
+		}
+		Object content = part.getContent();
+		if (content instanceof TypeNativeOperation || (content instanceof TypeClassicOperation && ((TypeClassicOperation) content).isFolded())) {
+			return 0;
+		}
+		else if (content instanceof TypeMethodOperation) {
+			int cost = 50;
+			for (QueryPart child : ((TypeMethodOperation) content).getParts()) {
+				cost += getCost(child);
+			}
+			return cost;
+		}
+		else if (content instanceof TypeVariableOperation) {
+			int cost = 0;
+			for (QueryPart child : ((TypeVariableOperation) content).getParts()) {
+				cost += child.getType() == QueryPart.Type.OPERATION ? 10 * (1 + getCost(child)) : 1;
+			}
+			return cost;
+		}
+		else if (content instanceof TypeClassicOperation) {
+			int cost = 1;
+			for (QueryPart child : ((TypeClassicOperation) content).getParts()) {
+				if (child.getType() == QueryPart.Type.IN || child.getType() == QueryPart.Type.NOT_IN || child.getType() == QueryPart.Type.MATCHES || child.getType() == QueryPart.Type.NOT_MATCHES) {
+					cost += 20;
+				}
+				else if (!child.getType().isOperator()) {
+					cost += getCost(child);
+				}
+			}
+			return cost;
+		}
+		return 100;
+	}
+	
+	private static ComparisonMode getComparisonMode(QueryPart.Type operator, Class<?> left, Class<?> right) {
+		boolean equality = operator == QueryPart.Type.EQUALS || operator == QueryPart.Type.NOT_EQUALS;
+		if (isIntegral(left) && isIntegral(right)) {
+			return ComparisonMode.LONG;
+		}
+		// equality for doubles takes the epsilon into account, that is left to the regular evaluation
+		else if (Double.class.equals(left) && (Double.class.equals(right) || isIntegral(right)) && !equality) {
+			return ComparisonMode.DOUBLE;
+		}
+		else if (String.class.equals(left) && String.class.equals(right)) {
+			return ComparisonMode.STRING;
+		}
+		else if (Boolean.class.equals(left) && Boolean.class.equals(right) && equality) {
+			return ComparisonMode.BOOLEAN;
+		}
+		return null;
+	}
+	
+	/**
+	 * The leftmost operand determines the type of the result, so that is what we calculate in.
+	 * Doubles in an integer calculation are converted to the type of the left operand with the converter, like the regular evaluation does.
+	 * Integer division (and its rounding) is left to the regular evaluation.
+	 */
+	private static boolean isArithmetic(QueryPart.Type[] operators, Class<?>[] classes) {
+		if (Double.class.equals(classes[0])) {
+			for (int i = 1; i < classes.length; i++) {
+				if (!Double.class.equals(classes[i]) && !isIntegral(classes[i])) {
+					return false;
+				}
+			}
+			return true;
+		}
+		else if (Integer.class.equals(classes[0]) || Long.class.equals(classes[0])) {
+			for (int i = 1; i < classes.length; i++) {
+				if (!(isIntegral(classes[i]) || Double.class.equals(classes[i])) || operators[i] == QueryPart.Type.DIVIDE) {
+					return false;
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+	
+	private static boolean isAdditive(QueryPart.Type operator) {
+		return operator == QueryPart.Type.ADD || operator == QueryPart.Type.SUBSTRACT;
+	}
+	
+	private static boolean isMultiplicative(QueryPart.Type operator) {
+		return operator == QueryPart.Type.MULTIPLY || operator == QueryPart.Type.DIVIDE || operator == QueryPart.Type.MOD;
+	}
+	
+	private static Evaluator getOperand(QueryPart part, ComplexType context) throws EvaluationException {
+		if (part.getType().isNative()) {
+			Object value = part.getContent();
+			return value instanceof Number || value instanceof String || value instanceof Boolean ? new Constant(value) : null;
+		}
+		else if (part.getType() == QueryPart.Type.OPERATION) {
+			Object content = part.getContent();
+			if (content instanceof TypeNativeOperation) {
+				return new Constant(((TypeNativeOperation) content).evaluate(null));
+			}
+			else if (content instanceof TypeClassicOperation && ((TypeClassicOperation) content).isFolded()) {
+				return new Constant(((TypeClassicOperation) content).getFolded());
+			}
+			else if (content instanceof TypeClassicOperation) {
+				Evaluator compiled = ((TypeClassicOperation) content).compile(context);
+				return compiled == null ? new Delegate((TypeOperation) content) : compiled;
+			}
+			// the variable operation uses its own compiled path
+			else if (content instanceof TypeVariableOperation) {
+				return new Delegate((TypeOperation) content);
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * The value of a part that does not depend on the context (a native or a folded operation), null otherwise
+	 */
+	static Object getLiteral(QueryPart part) {
+		if (part.getType().isNative()) {
+			return part.getContent();
+		}
+		else if (part.getType() == QueryPart.Type.OPERATION && part.getContent() instanceof TypeNativeOperation) {
+			return ((TypeNativeOperation) part.getContent()).getParts().get(0).getContent();
+		}
+		else if (part.getType() == QueryPart.Type.OPERATION && part.getContent() instanceof TypeClassicOperation && ((TypeClassicOperation) part.getContent()).isFolded()) {
+			return ((TypeClassicOperation) part.getContent()).getFolded();
+		}
+		return null;
+	}
+	
+	/**
+	 * The class of the value we expect the operand to produce, primitives are boxed
+	 */
+	static Class<?> getOperandClass(QueryPart part, ComplexType context) throws EvaluationException {
+		if (part.getType().isNative()) {
+			return part.getContent() == null ? null : part.getContent().getClass();
+		}
+		else if (part.getType() == QueryPart.Type.OPERATION) {
+			if (part.getContent() instanceof TypeNativeOperation) {
+				Object value = ((TypeNativeOperation) part.getContent()).evaluate(null);
+				return value == null ? null : value.getClass();
+			}
+			else if (part.getContent() instanceof TypeClassicOperation && ((TypeClassicOperation) part.getContent()).isFolded()) {
+				Object value = ((TypeClassicOperation) part.getContent()).getFolded();
+				return value == null ? null : value.getClass();
+			}
+			TypeOperation operation = (TypeOperation) part.getContent();
+			// collections are left to the regular evaluation
+			if (operation.getReturnCollectionHandler(context) != null) {
+				return null;
+			}
+			Type type = operation.getReturnType(context);
+			return type instanceof SimpleType ? box(((SimpleType<?>) type).getInstanceClass()) : null;
+		}
+		return null;
+	}
+	
+	static Class<?> box(Class<?> clazz) {
+		if (clazz == null || !clazz.isPrimitive()) {
+			return clazz;
+		}
+		else if (int.class.equals(clazz)) {
+			return Integer.class;
+		}
+		else if (long.class.equals(clazz)) {
+			return Long.class;
+		}
+		else if (double.class.equals(clazz)) {
+			return Double.class;
+		}
+		else if (boolean.class.equals(clazz)) {
+			return Boolean.class;
+		}
+		else if (short.class.equals(clazz)) {
+			return Short.class;
+		}
+		else if (byte.class.equals(clazz)) {
+			return Byte.class;
+		}
+		else if (float.class.equals(clazz)) {
+			return Float.class;
+		}
+		return clazz;
+	}
+	
+	static boolean isIntegral(Class<?> clazz) {
+		return Integer.class.equals(clazz) || Long.class.equals(clazz) || Short.class.equals(clazz) || Byte.class.equals(clazz);
+	}
+	
+	static boolean isIntegral(Object value) {
+		return value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte;
+	}
+	
+	/**
+	 * Thrown by the primitive evaluations if a value is not what was expected, it is caught by the evaluator that started the calculation which falls back to the regular evaluation.
+	 * As this should be rare and it has no stack trace, it is cheaper than checking a return value at every step.
+	 */
+	private static final class Fallback extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		private Fallback() {
+			super(null, null, false, false);
+		}
+	}
+	
+	private static final Fallback FALLBACK = new Fallback();
+	
+	private static long toLong(Evaluator evaluator, ComplexContent context) throws EvaluationException {
+		return toLong(evaluator, context, null, null);
+	}
+	
+	/**
+	 * If an operation is passed in, doubles are converted to the target class with its converter
+	 */
+	private static long toLong(Evaluator evaluator, ComplexContent context, TypeClassicOperation operation, Class<?> target) throws EvaluationException {
+		if (evaluator instanceof Arithmetic) {
+			Arithmetic arithmetic = (Arithmetic) evaluator;
+			if (arithmetic.resultClass == Double.class) {
+				if (operation == null) {
+					throw FALLBACK;
+				}
+				return toLong(arithmetic.evaluateDouble(context), operation, target);
+			}
+			return arithmetic.evaluateLong(context);
+		}
+		Object value = evaluator.evaluate(context);
+		if (value instanceof Double && operation != null) {
+			return toLong((Double) value, operation, target);
+		}
+		else if (!isIntegral(value)) {
+			throw FALLBACK;
+		}
+		return ((Number) value).longValue();
+	}
+	
+	private static long toLong(double value, TypeClassicOperation operation, Class<?> target) {
+		Object converted = operation.getConverter().convert(value, target);
+		if (!isIntegral(converted)) {
+			throw FALLBACK;
+		}
+		return ((Number) converted).longValue();
+	}
+	
+	/**
+	 * @param strict whether or not the value must be a double, otherwise integral values are accepted as well
+	 */
+	private static double toDouble(Evaluator evaluator, ComplexContent context, boolean strict) throws EvaluationException {
+		if (evaluator instanceof Arithmetic) {
+			Arithmetic arithmetic = (Arithmetic) evaluator;
+			if (arithmetic.resultClass == Double.class) {
+				return arithmetic.evaluateDouble(context);
+			}
+			else if (strict) {
+				throw FALLBACK;
+			}
+			return arithmetic.evaluateLong(context);
+		}
+		Object value = evaluator.evaluate(context);
+		if (value instanceof Double || (!strict && isIntegral(value))) {
+			return ((Number) value).doubleValue();
+		}
+		throw FALLBACK;
+	}
+	
+	private enum ComparisonMode {
+		LONG, DOUBLE, STRING, BOOLEAN
+	}
+	
+	private static class Constant implements Evaluator {
+		private final Object value;
+		Constant(Object value) {
+			this.value = value;
+		}
+		@Override
+		public Object evaluate(ComplexContent context) {
+			return value;
+		}
+	}
+	
+	private static class Delegate implements Evaluator {
+		private final TypeOperation operation;
+		Delegate(TypeOperation operation) {
+			this.operation = operation;
+		}
+		@Override
+		public Object evaluate(ComplexContent context) throws EvaluationException {
+			return operation.evaluate(context);
+		}
+	}
+	
+	private static class Not implements Evaluator {
+		private final TypeClassicOperation operation;
+		private final Evaluator operand;
+		Not(TypeClassicOperation operation, Evaluator operand) {
+			this.operation = operation;
+			this.operand = operand;
+		}
+		@Override
+		public Object evaluate(ComplexContent context) throws EvaluationException {
+			Object value = operand.evaluate(context);
+			return value instanceof Boolean ? Boolean.valueOf(!(Boolean) value) : operation.interpret(context);
+		}
+	}
+	
+	/**
+	 * A chain of "and" or "or" operators, this stops as soon as the outcome is known.
+	 * If the operands were reordered, an operand might fail on a value that the original order would have ruled out (e.g. a null check), in that case the regular evaluation decides.
+	 */
+	private static class Logical implements Evaluator {
+		private final TypeClassicOperation operation;
+		private final Evaluator[] operands;
+		private final boolean and, reordered;
+		Logical(TypeClassicOperation operation, Evaluator[] operands, boolean and, boolean reordered) {
+			this.operation = operation;
+			this.operands = operands;
+			this.and = and;
+			this.reordered = reordered;
+		}
+		@Override
+		public Object evaluate(ComplexContent context) throws EvaluationException {
+			if (!reordered) {
+				return evaluateInOrder(context);
+			}
+			try {
+				return evaluateInOrder(context);
+			}
+			catch (EvaluationException | RuntimeException e) {
+				return operation.interpret(context);
+			}
+		}
+		private Object evaluateInOrder(ComplexContent context) throws EvaluationException {
+			for (int i = 0; i < operands.length; i++) {
+				Object value = operands[i].evaluate(context);
+				if (!(value instanceof Boolean)) {
+					return operation.interpret(context);
+				}
+				// a false for "and" or a true for "or" decides the outcome
+				else if ((Boolean) value != and) {
+					return value;
+				}
+			}
+			return Boolean.valueOf(and);
+		}
+	}
+	
+	private static class Comparison implements Evaluator {
+		private final TypeClassicOperation operation;
+		private final Evaluator left, right;
+		private final QueryPart.Type operator;
+		private final ComparisonMode mode;
+		Comparison(TypeClassicOperation operation, Evaluator left, Evaluator right, QueryPart.Type operator, ComparisonMode mode) {
+			this.operation = operation;
+			this.left = left;
+			this.right = right;
+			this.operator = operator;
+			this.mode = mode;
+		}
+		@Override
+		public Object evaluate(ComplexContent context) throws EvaluationException {
+			try {
+				switch (mode) {
+					case LONG:
+						return toBoolean(Long.compare(toLong(left, context), toLong(right, context)));
+					case DOUBLE:
+						return toBoolean(Double.compare(toDouble(left, context, true), toDouble(right, context, false)));
+					case STRING:
+						Object leftString = left.evaluate(context), rightString = right.evaluate(context);
+						if (leftString instanceof String && rightString instanceof String) {
+							return toBoolean(((String) leftString).compareTo((String) rightString));
+						}
+					break;
+					case BOOLEAN:
+						Object leftBoolean = left.evaluate(context), rightBoolean = right.evaluate(context);
+						if (leftBoolean instanceof Boolean && rightBoolean instanceof Boolean) {
+							return toBoolean(leftBoolean.equals(rightBoolean) ? 0 : 1);
+						}
+					break;
+				}
+			}
+			catch (Fallback e) {
+				// use the regular evaluation
+			}
+			return operation.interpret(context);
+		}
+		private Boolean toBoolean(int comparison) {
+			switch (operator) {
+				case EQUALS: return comparison == 0;
+				case NOT_EQUALS: return comparison != 0;
+				case LESSER: return comparison < 0;
+				case LESSER_OR_EQUALS: return comparison <= 0;
+				case GREATER: return comparison > 0;
+				case GREATER_OR_EQUALS: return comparison >= 0;
+				default: throw new IllegalStateException("Not a comparison: " + operator);
+			}
+		}
+	}
+	
+	/**
+	 * A sequence of additive or multiplicative operators that is calculated left to right in a primitive long or double.
+	 * Only the final result is boxed, in the type of the leftmost operand, nested calculations pass along primitives.
+	 */
+	private static class Arithmetic implements Evaluator {
+		private final TypeClassicOperation operation;
+		private final Evaluator[] operands;
+		private final QueryPart.Type[] operators;
+		private final Class<?> resultClass;
+		Arithmetic(TypeClassicOperation operation, Evaluator[] operands, QueryPart.Type[] operators, Class<?> resultClass) {
+			this.operation = operation;
+			this.operands = operands;
+			this.operators = operators;
+			this.resultClass = resultClass;
+		}
+		@Override
+		public Object evaluate(ComplexContent context) throws EvaluationException {
+			try {
+				if (resultClass == Double.class) {
+					return evaluateDouble(context);
+				}
+				else if (resultClass == Long.class) {
+					return evaluateLong(context);
+				}
+				else {
+					return (int) evaluateLong(context);
+				}
+			}
+			catch (Fallback e) {
+				return operation.interpret(context);
+			}
+		}
+		/**
+		 * The leftmost value must be of the result class, otherwise we would box it into the wrong type
+		 */
+		private Object first(ComplexContent context) throws EvaluationException {
+			Object value = operands[0].evaluate(context);
+			if (value == null || value.getClass() != resultClass) {
+				throw FALLBACK;
+			}
+			return value;
+		}
+		long evaluateLong(ComplexContent context) throws EvaluationException {
+			long result = operands[0] instanceof Arithmetic ? ((Arithmetic) operands[0]).evaluateLong(context) : ((Number) first(context)).longValue();
+			for (int i = 1; i < operands.length; i++) {
+				long value = toLong(operands[i], context, operation, resultClass);
+				// integers are calculated as integers so overflows behave the same
+				if (resultClass == Integer.class) {
+					if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+						throw FALLBACK;
+					}
+					result = calculate((int) result, (int) value, operators[i]);
+				}
+				else {
+					result = calculate(result, value, operators[i]);
+				}
+			}
+			return result;
+		}
+		double evaluateDouble(ComplexContent context) throws EvaluationException {
+			double result = operands[0] instanceof Arithmetic ? ((Arithmetic) operands[0]).evaluateDouble(context) : ((Number) first(context)).doubleValue();
+			for (int i = 1; i < operands.length; i++) {
+				double value = toDouble(operands[i], context, false);
+				switch (operators[i]) {
+					case ADD: result += value; break;
+					case SUBSTRACT: result -= value; break;
+					case MULTIPLY: result *= value; break;
+					case DIVIDE: result /= value; break;
+					case MOD: result %= value; break;
+					default: throw FALLBACK;
+				}
+			}
+			return result;
+		}
+		private static int calculate(int left, int right, QueryPart.Type operator) {
+			switch (operator) {
+				case ADD: return left + right;
+				case SUBSTRACT: return left - right;
+				case MULTIPLY: return left * right;
+				// let the regular evaluation decide what a division by zero means
+				case MOD: if (right == 0) { throw FALLBACK; } return left % right;
+				default: throw FALLBACK;
+			}
+		}
+		private static long calculate(long left, long right, QueryPart.Type operator) {
+			switch (operator) {
+				case ADD: return left + right;
+				case SUBSTRACT: return left - right;
+				case MULTIPLY: return left * right;
+				case MOD: if (right == 0) { throw FALLBACK; } return left % right;
+				default: throw FALLBACK;
+			}
+		}
+	}
+}
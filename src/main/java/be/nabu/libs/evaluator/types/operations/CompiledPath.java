@@ -0,0 +1,182 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.evaluator.types.operations;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+
+import be.nabu.libs.evaluator.EvaluationException;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.api.Element;
+import be.nabu.libs.types.api.SimpleType;
+import be.nabu.libs.types.java.BeanInstance;
+import be.nabu.libs.types.java.BeanType;
+
+/**
+ * A variable path that has been bound to the elements of a specific type.
+ * All the string handling (leading "/", attributes,...) and the lookups in the type are done once when it is compiled, evaluating it simply walks the bound elements.
+ * Bean properties are read with a method handle to their getter, other steps use the complex content they are applied to.
+ * One step can be a list: the steps after it are applied to every item.
+ */
+public final class CompiledPath {
+
+	/**
+	 * Returned when the compiled path can not decide on the result (e.g. a list contains missing items), the regular evaluation should be used instead
+	 */
+	static final Object UNRESOLVED = new Object();
+	
+	private final ComplexType type;
+	private final String[] names;
+	private final Element<?>[] elements;
+	/**
+	 * The bean class and getter for every step that can be read directly, null for the other steps
+	 */
+	private final Class<?>[] owners;
+	private final MethodHandle[] getters;
+	/**
+	 * The step that returns a list, -1 if there is none
+	 */
+	private final int list;
+
+	CompiledPath(ComplexType type, String[] names, Element<?>[] elements) {
+		this.type = type;
+		this.names = names;
+		this.elements = elements;
+		this.owners = new Class<?>[names.length];
+		this.getters = new MethodHandle[names.length];
+		int list = -1;
+		for (int i = 0; i < elements.length; i++) {
+			if (elements[i].getType().isList(elements[i].getProperties())) {
+				list = i;
+			}
+			// the value of the last step is returned as is, an intermediate bean is simply the context for the next step
+			else if (elements[i].getParent() instanceof BeanType && (elements[i].getType() instanceof SimpleType || (i < elements.length - 1 && elements[i].getType() instanceof BeanType))) {
+				Class<?> owner = ((BeanType<?>) elements[i].getParent()).getBeanClass();
+				getters[i] = getGetter(owner, names[i], elements[i]);
+				owners[i] = getters[i] == null ? null : owner;
+			}
+		}
+		this.list = list;
+	}
+
+	/**
+	 * The type this path was compiled for
+	 */
+	public ComplexType getType() {
+		return type;
+	}
+
+	/**
+	 * The elements that are accessed, in order
+	 */
+	public Element<?>[] getElements() {
+		return elements.clone();
+	}
+
+	boolean isSingleValued() {
+		return list < 0;
+	}
+	
+	/**
+	 * Returns {@link #UNRESOLVED} if the result has to be determined by the regular evaluation
+	 */
+	Object evaluate(ComplexContent context) throws EvaluationException {
+		return evaluate(context, 0);
+	}
+	
+	private Object evaluate(Object current, int from) throws EvaluationException {
+		for (int i = from; i < names.length; i++) {
+			if (current == null) {
+				return null;
+			}
+			current = get(current, i);
+			if (i == list && i < names.length - 1) {
+				return evaluateItems(current, i + 1);
+			}
+		}
+		return current;
+	}
+	
+	private Object evaluateItems(Object items, int from) throws EvaluationException {
+		if (!(items instanceof List) || ((List<?>) items).isEmpty()) {
+			return UNRESOLVED;
+		}
+		List<Object> result = new ArrayList<Object>(((List<?>) items).size());
+		for (Object item : (List<?>) items) {
+			// we don't second guess how the regular evaluation treats missing items or values
+			Object value = item == null ? null : evaluate(item, from);
+			if (value == null || value == UNRESOLVED) {
+				return UNRESOLVED;
+			}
+			result.add(value);
+		}
+		return result;
+	}
+	
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private Object get(Object current, int step) throws EvaluationException {
+		if (getters[step] != null) {
+			Object bean = current instanceof BeanInstance ? ((BeanInstance) current).getUnwrapped() : current;
+			if (owners[step].isInstance(bean)) {
+				try {
+					return (Object) getters[step].invokeExact(bean);
+				}
+				catch (Throwable e) {
+					EvaluationException exception = new EvaluationException("Could not get '" + names[step] + "' from: " + owners[step].getName());
+					exception.initCause(e);
+					throw exception;
+				}
+			}
+		}
+		ComplexContent content = current instanceof ComplexContent ? (ComplexContent) current : new BeanInstance(current);
+		return content.get(names[step]);
+	}
+	
+	/**
+	 * The getter is derived from the element name so we read the same property the bean type exposes
+	 */
+	private static MethodHandle getGetter(Class<?> owner, String name, Element<?> element) {
+		String suffix = Character.toUpperCase(name.charAt(0)) + name.substring(1);
+		for (String prefix : new String[] { "get", "is" }) {
+			try {
+				Method method = owner.getMethod(prefix + suffix);
+				if (Modifier.isStatic(method.getModifiers()) || (prefix.equals("is") && !boolean.class.equals(method.getReturnType()))) {
+					continue;
+				}
+				// only values that need no conversion are read directly
+				if (element.getType() instanceof SimpleType && !ClassicCompiler.box(method.getReturnType()).equals(((SimpleType<?>) element.getType()).getInstanceClass())) {
+					return null;
+				}
+				return MethodHandles.publicLookup().unreflect(method).asType(MethodType.methodType(Object.class, Object.class));
+			}
+			catch (NoSuchMethodException e) {
+				// try the next prefix
+			}
+			catch (IllegalAccessException e) {
+				return null;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,74 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.evaluator.types.operations;
+
+import be.nabu.libs.evaluator.EvaluationException;
+import be.nabu.libs.evaluator.types.api.EvaluationListener;
+import be.nabu.libs.evaluator.types.api.TypeOperation;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.ComplexType;
+
+/**
+ * Holds the listener that the typed operations report to, there is none by default.
+ * Without a listener the operations only check for its presence, they don't measure anything.
+ */
+public class EvaluationListenerFactory {
+
+	private static EvaluationListenerFactory instance = new EvaluationListenerFactory();
+	
+	public static EvaluationListenerFactory getInstance() {
+		return instance;
+	}
+	
+	private volatile EvaluationListener listener;
+	
+	public EvaluationListener getListener() {
+		return listener;
+	}
+	
+	public void setListener(EvaluationListener listener) {
+		this.listener = listener;
+	}
+	
+	static void cacheAccessed(String cache, boolean hit) {
+		EvaluationListener listener = instance.listener;
+		if (listener != null) {
+			listener.cacheAccessed(cache, hit);
+		}
+	}
+	
+	static void resolvedAtRuntime(TypeOperation operation, ComplexType context) {
+		EvaluationListener listener = instance.listener;
+		if (listener != null) {
+			listener.resolvedAtRuntime(operation, context);
+		}
+	}
+	
+	static Object observe(EvaluationListener listener, TypeOperation operation, ComplexContent context, Evaluator evaluator) throws EvaluationException {
+		long started = System.nanoTime();
+		boolean failed = true;
+		try {
+			Object result = evaluator.evaluate(context);
+			failed = false;
+			return result;
+		}
+		finally {
+			listener.evaluated(operation, context, System.nanoTime() - started, failed);
+		}
+	}
+}
@@ -0,0 +1,84 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.evaluator.types.operations;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * A single evaluation that visits a lot of rows, e.g. a filter over a list or a batch.
+ * Nothing can change the data while a side effect free evaluation is running so within a scope, things calculated from an instance (like the hash index for a membership check) can be reused for that same instance.
+ * Once the scope is closed, everything is dropped, the next evaluation starts from scratch and sees any changes that were made in between.
+ * A scope belongs to the thread that opened it.
+ */
+final class EvaluationScope {
+
+	private static final ThreadLocal<EvaluationScope> current = new ThreadLocal<EvaluationScope>();
+	
+	static EvaluationScope get() {
+		return current.get();
+	}
+	
+	/**
+	 * Opens a new scope, this returns null if a scope is already open in which case the caller is part of that scope and should not close anything
+	 */
+	static EvaluationScope open() {
+		if (current.get() != null) {
+			return null;
+		}
+		EvaluationScope scope = new EvaluationScope();
+		current.set(scope);
+		return scope;
+	}
+	
+	void close() {
+		current.remove();
+	}
+	
+	/**
+	 * The instance we last saw for which nothing was calculated yet.
+	 * Only an instance that is seen twice in a row is worth calculating something for, values that are built anew for every row (e.g. the result of a path over a list) never are.
+	 */
+	private Object candidate;
+	private final Map<Object, Object> values = new IdentityHashMap<Object, Object>();
+	
+	/**
+	 * Returns what was calculated for the instance or null if nothing was
+	 */
+	Object get(Object instance) {
+		return values.get(instance);
+	}
+	
+	/**
+	 * Returns true if this is the second time in a row that the instance is offered
+	 */
+	boolean isRepeated(Object instance) {
+		if (candidate == instance) {
+			return true;
+		}
+		candidate = instance;
+		return false;
+	}
+	
+	void put(Object instance, Object value) {
+		values.put(instance, value);
+		if (candidate == instance) {
+			candidate = null;
+		}
+	}
+}
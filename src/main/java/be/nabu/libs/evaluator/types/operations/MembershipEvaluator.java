@@ -0,0 +1,258 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.evaluator.types.operations;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import be.nabu.libs.evaluator.EvaluationException;
+import be.nabu.libs.evaluator.QueryPart;
+import be.nabu.libs.evaluator.api.Operation;
+import be.nabu.libs.evaluator.impl.VariableOperation;
+import be.nabu.libs.evaluator.types.api.TypeOperation;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.api.SimpleType;
+import be.nabu.libs.types.api.Type;
+
+/**
+ * Evaluates "#" and "!#" against large collections with a hash lookup instead of a scan.
+ * The set is only built within an {@link EvaluationScope} (e.g. the evaluation of "list[code # /allowedCodes]") once the same collection comes back for a second row, from then on it is reused until the scope ends.
+ * Collections that are calculated anew for every row are never indexed and outside of a scope the regular evaluation is always used, so changes made to a collection between evaluations are always seen.
+ * This is only done when the lookup is guaranteed to give the same outcome as the regular evaluation: the value we look for and the items must be typed as the same string or integral class (integral items are kept in a primitive set).
+ * Values of the same class are simply compared with equals, so a collection that can not be indexed (it is small, it contains nulls,...) is scanned here with the values we already have instead of evaluating the operands again.
+ * Any other combination (mixed types, decimals which depend on an epsilon,...) is left to the regular evaluation without evaluating anything here.
+ */
+class MembershipEvaluator implements Evaluator {
+
+	/**
+	 * Below this size a scan is about as fast as a lookup and not worth the memory
+	 */
+	static final int THRESHOLD = 32;
+	
+	private final TypeClassicOperation operation;
+	private final Operation<ComplexContent> left, right;
+	private final Object leftValue;
+	private final boolean negate;
+	
+	/**
+	 * Whether the operands are typed so the check can be done here, per context type and runtime root (for absolute paths)
+	 */
+	private final TypeCache<Boolean> indexable = new TypeCache<Boolean>();
+	
+	private MembershipEvaluator(TypeClassicOperation operation, Operation<ComplexContent> left, Object leftValue, Operation<ComplexContent> right, boolean negate) {
+		this.operation = operation;
+		this.left = left;
+		this.leftValue = leftValue;
+		this.right = right;
+		this.negate = negate;
+	}
+	
+	/**
+	 * Returns null if the operation is not a single (side effect free) membership check
+	 */
+	@SuppressWarnings("unchecked")
+	static MembershipEvaluator newInstance(TypeClassicOperation operation) {
+		List<QueryPart> parts = operation.getParts();
+		if (parts.size() != 3 || (parts.get(1).getType() != QueryPart.Type.IN && parts.get(1).getType() != QueryPart.Type.NOT_IN) || !TypeOperationCompiler.isSideEffectFree(operation)) {
+			return null;
+		}
+		Object leftValue = ClassicCompiler.getLiteral(parts.get(0));
+		Operation<ComplexContent> left = leftValue == null && parts.get(0).getType() == QueryPart.Type.OPERATION ? (Operation<ComplexContent>) parts.get(0).getContent() : null;
+		if ((leftValue == null && left == null) || parts.get(2).getType() != QueryPart.Type.OPERATION) {
+			return null;
+		}
+		return new MembershipEvaluator(operation, left, leftValue, (Operation<ComplexContent>) parts.get(2).getContent(), parts.get(1).getType() == QueryPart.Type.NOT_IN);
+	}
+
+	@Override
+	public Object evaluate(ComplexContent context) throws EvaluationException {
+		if (context == null || EvaluationScope.get() == null || !isIndexable(context.getType())) {
+			return operation.interpret(context);
+		}
+		Object value = left == null ? leftValue : left.evaluate(context);
+		Object collection = right.evaluate(context);
+		if (collection instanceof Object[]) {
+			collection = Arrays.asList((Object[]) collection);
+		}
+		if (collection instanceof Collection) {
+			if (value != null && ((Collection<?>) collection).size() >= THRESHOLD) {
+				Index index = getIndex((Collection<?>) collection);
+				if (index != null && index.itemClass == value.getClass()) {
+					return index.contains(value) != negate;
+				}
+			}
+			for (Object item : (Collection<?>) collection) {
+				if (value == null ? item == null : value.equals(item)) {
+					return !negate;
+				}
+			}
+			return negate;
+		}
+		// a single value is a collection of one, nothing is a collection of none
+		return (collection != null && collection.equals(value)) != negate;
+	}
+	
+	private boolean isIndexable(ComplexType type) {
+		Object root = VariableOperation.getCurrentRootContext();
+		ComplexType rootType = root instanceof ComplexContent ? ((ComplexContent) root).getType() : null;
+		Boolean indexable = this.indexable.get(type, rootType, 0);
+		if (indexable == null) {
+			Class<?> leftClass = left == null ? leftValue.getClass() : getOperandClass(left, type, false);
+			indexable = (String.class.equals(leftClass) || ClassicCompiler.isIntegral(leftClass)) && leftClass.equals(getOperandClass(right, type, true));
+			this.indexable.put(type, rootType, 0, indexable);
+		}
+		return indexable;
+	}
+	
+	/**
+	 * The boxed class of the operand (or of its items if it should be a list), this is null if it can not be typed or is not a simple type
+	 */
+	private static Class<?> getOperandClass(Operation<ComplexContent> operand, ComplexType type, boolean list) {
+		try {
+			Type returnType;
+			boolean isList;
+			if (operand instanceof TypeVariableOperation) {
+				// absolute paths in a filter can only be typed against the runtime root
+				TypeResolution resolution = ((TypeVariableOperation) operand).getResolution(type, true);
+				returnType = resolution.getType();
+				isList = resolution.getCollectionHandler() != null;
+			}
+			else if (operand instanceof TypeOperation) {
+				returnType = ((TypeOperation) operand).getReturnType(type);
+				isList = ((TypeOperation) operand).getReturnCollectionHandler(type) != null;
+			}
+			else {
+				return null;
+			}
+			return isList == list && returnType instanceof SimpleType ? ClassicCompiler.box(((SimpleType<?>) returnType).getInstanceClass()) : null;
+		}
+		// leave it to the regular evaluation to report the problem
+		catch (Exception e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Returns null if the collection should be scanned
+	 */
+	private static Index getIndex(Collection<?> collection) {
+		EvaluationScope scope = EvaluationScope.get();
+		if (scope == null) {
+			return null;
+		}
+		Index index = (Index) scope.get(collection);
+		if (index != null) {
+			EvaluationListenerFactory.cacheAccessed("membership", true);
+		}
+		else if (scope.isRepeated(collection)) {
+			EvaluationListenerFactory.cacheAccessed("membership", false);
+			index = new Index(collection);
+			scope.put(collection, index);
+		}
+		return index;
+	}
+	
+	private static class Index {
+		/**
+		 * The class of all the items, this is null if they can not be indexed
+		 */
+		private final Class<?> itemClass;
+		private final Set<Object> objects;
+		private final LongSet longs;
+		
+		Index(Collection<?> collection) {
+			Class<?> itemClass = null;
+			for (Object item : collection) {
+				if (item == null || (itemClass != null && item.getClass() != itemClass) || !(item instanceof String || ClassicCompiler.isIntegral(item))) {
+					itemClass = null;
+					break;
+				}
+				itemClass = item.getClass();
+			}
+			this.itemClass = itemClass;
+			if (String.class.equals(itemClass)) {
+				this.objects = new HashSet<Object>(collection);
+				this.longs = null;
+			}
+			else if (itemClass != null) {
+				this.objects = null;
+				this.longs = new LongSet(collection.size());
+				for (Object item : collection) {
+					longs.add(((Number) item).longValue());
+				}
+			}
+			else {
+				this.objects = null;
+				this.longs = null;
+			}
+		}
+		
+		boolean contains(Object value) {
+			return longs != null ? longs.contains(((Number) value).longValue()) : objects.contains(value);
+		}
+	}
+	
+	/**
+	 * An open addressing set of longs so the values don't have to be boxed
+	 */
+	private static class LongSet {
+		private final long[] values;
+		private final boolean[] used;
+		private final int mask;
+		
+		LongSet(int expected) {
+			// keep the load factor at or below 0.5
+			int capacity = Integer.highestOneBit(Math.max(2, expected) * 2 - 1) << 1;
+			this.values = new long[capacity];
+			this.used = new boolean[capacity];
+			this.mask = capacity - 1;
+		}
+		
+		void add(long value) {
+			int slot = slot(value);
+			while (used[slot]) {
+				if (values[slot] == value) {
+					return;
+				}
+				slot = (slot + 1) & mask;
+			}
+			used[slot] = true;
+			values[slot] = value;
+		}
+		
+		boolean contains(long value) {
+			int slot = slot(value);
+			while (used[slot]) {
+				if (values[slot] == value) {
+					return true;
+				}
+				slot = (slot + 1) & mask;
+			}
+			return false;
+		}
+		
+		private int slot(long value) {
+			long hash = value * 0x9E3779B97F4A7C15L;
+			return (int) (hash ^ (hash >>> 32)) & mask;
+		}
+	}
+}
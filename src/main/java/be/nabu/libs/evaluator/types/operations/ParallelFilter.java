@@ -0,0 +1,137 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.evaluator.types.operations;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import be.nabu.libs.evaluator.EvaluationException;
+import be.nabu.libs.evaluator.api.Operation;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.java.BeanInstance;
+
+/**
+ * Filters a list with a predicate on the common fork join pool, the matches are returned in the original order.
+ * This is only set up for predicates that are side effect free and only look at the item they are evaluated against (no absolute paths, $this or nested subqueries) as the evaluation stack does not exist in the worker threads.
+ * Any remaining path after the filter is bound to the item type up front.
+ */
+class ParallelFilter {
+
+	/**
+	 * The minimum amount of items a single task will handle sequentially
+	 */
+	private static final int MINIMUM_BATCH = 64;
+	
+	private final String name;
+	private final Operation<ComplexContent> predicate;
+	private final CompiledPath remainder;
+	
+	ParallelFilter(String name, Operation<ComplexContent> predicate, CompiledPath remainder) {
+		this.name = name;
+		this.predicate = predicate;
+		this.remainder = remainder;
+	}
+
+	String getName() {
+		return name;
+	}
+	
+	/**
+	 * Returns null if the result can not be built in parallel (e.g. because the remaining path hits a null value), the regular evaluation should be used instead
+	 */
+	List<?> filter(List<?> list) throws EvaluationException {
+		int batch = Math.max(MINIMUM_BATCH, list.size() / (ForkJoinPool.getCommonPoolParallelism() * 4));
+		try {
+			return ForkJoinPool.commonPool().invoke(new FilterTask(list, 0, list.size(), batch));
+		}
+		catch (RuntimeException e) {
+			Throwable cause = e;
+			while (cause != null) {
+				if (cause instanceof EvaluationException) {
+					throw (EvaluationException) cause;
+				}
+				cause = cause.getCause();
+			}
+			throw e;
+		}
+	}
+	
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private List<Object> filter(List<?> list, int from, int to) throws EvaluationException {
+		List<Object> result = new ArrayList<Object>();
+		for (int i = from; i < to; i++) {
+			Object item = list.get(i);
+			// we don't second guess how the regular evaluation treats missing items
+			if (item == null) {
+				return null;
+			}
+			ComplexContent content = item instanceof ComplexContent ? (ComplexContent) item : new BeanInstance(item);
+			if (Boolean.TRUE.equals(predicate.evaluate(content))) {
+				if (remainder == null) {
+					result.add(item);
+				}
+				else {
+					Object value = remainder.evaluate(content);
+					if (value == null || value == CompiledPath.UNRESOLVED) {
+						return null;
+					}
+					result.add(value);
+				}
+			}
+		}
+		return result;
+	}
+	
+	private class FilterTask extends RecursiveTask<List<Object>> {
+		private static final long serialVersionUID = 1L;
+		
+		private final List<?> list;
+		private final int from, to, batch;
+		
+		FilterTask(List<?> list, int from, int to, int batch) {
+			this.list = list;
+			this.from = from;
+			this.to = to;
+			this.batch = batch;
+		}
+
+		@Override
+		protected List<Object> compute() {
+			if (to - from <= batch) {
+				try {
+					return filter(list, from, to);
+				}
+				catch (EvaluationException e) {
+					throw new RuntimeException(e);
+				}
+			}
+			int middle = (from + to) >>> 1;
+			FilterTask left = new FilterTask(list, from, middle, batch);
+			left.fork();
+			List<Object> right = new FilterTask(list, middle, to, batch).compute();
+			List<Object> result = left.join();
+			if (result == null || right == null) {
+				return null;
+			}
+			result.addAll(right);
+			return result;
+		}
+	}
+}
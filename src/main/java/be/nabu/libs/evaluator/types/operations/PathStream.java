@@ -0,0 +1,153 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.evaluator.types.operations;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import be.nabu.libs.evaluator.EvaluationException;
+import be.nabu.libs.evaluator.api.Operation;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.java.BeanInstance;
+
+/**
+ * A variable path that yields its results one by one instead of building a list at every step.
+ * Each step holds the name of the child, whether it is a list and optionally a (side effect free, item local) filter or a fixed index.
+ * Only the iterators of the current branch are kept so the memory use does not depend on the size of the lists.
+ * Null values along the way are skipped.
+ */
+class PathStream {
+
+	private final String[] names;
+	private final boolean[] lists;
+	private final Operation<ComplexContent>[] filters;
+	private final int[] indexes;
+
+	PathStream(String[] names, boolean[] lists, Operation<ComplexContent>[] filters, int[] indexes) {
+		this.names = names;
+		this.lists = lists;
+		this.filters = filters;
+		this.indexes = indexes;
+	}
+
+	Stream<Object> stream(ComplexContent context) {
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator(context), Spliterator.ORDERED | Spliterator.NONNULL), false);
+	}
+	
+	Iterator<Object> iterator(ComplexContent context) {
+		return new PathIterator(context);
+	}
+	
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private Iterator<?> getChildren(int step, Object parent) {
+		ComplexContent content = parent instanceof ComplexContent ? (ComplexContent) parent : new BeanInstance(parent);
+		Object value = content.get(names[step]);
+		if (value == null) {
+			return Collections.emptyIterator();
+		}
+		else if (!lists[step]) {
+			return Collections.singleton(value).iterator();
+		}
+		Iterable<?> iterable = value instanceof Object[] ? Arrays.asList((Object[]) value) : (value instanceof Iterable ? (Iterable<?>) value : Collections.singleton(value));
+		if (indexes[step] < 0) {
+			return iterable.iterator();
+		}
+		Object item = null;
+		if (iterable instanceof List) {
+			item = indexes[step] < ((List<?>) iterable).size() ? ((List<?>) iterable).get(indexes[step]) : null;
+		}
+		else {
+			Iterator<?> iterator = iterable.iterator();
+			for (int i = 0; i <= indexes[step] && iterator.hasNext(); i++) {
+				Object next = iterator.next();
+				if (i == indexes[step]) {
+					item = next;
+				}
+			}
+		}
+		return item == null ? Collections.emptyIterator() : Collections.singleton(item).iterator();
+	}
+	
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private boolean accept(int step, Object item) {
+		if (item == null) {
+			return false;
+		}
+		else if (filters[step] == null) {
+			return true;
+		}
+		try {
+			return Boolean.TRUE.equals(filters[step].evaluate(item instanceof ComplexContent ? (ComplexContent) item : new BeanInstance(item)));
+		}
+		catch (EvaluationException e) {
+			throw new RuntimeException("Could not evaluate the filter on " + names[step], e);
+		}
+	}
+	
+	/**
+	 * A depth first walk, level 0 is the context itself and level i + 1 holds the children of the current item at level i
+	 */
+	private class PathIterator implements Iterator<Object> {
+		private final Iterator<?>[] levels = new Iterator<?>[names.length + 1];
+		private int depth;
+		private Object next;
+		
+		PathIterator(ComplexContent context) {
+			levels[0] = context == null ? Collections.emptyIterator() : Collections.singleton(context).iterator();
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (next == null && depth >= 0) {
+				if (!levels[depth].hasNext()) {
+					levels[depth--] = null;
+					continue;
+				}
+				Object item = levels[depth].next();
+				if (depth > 0 && !accept(depth - 1, item)) {
+					continue;
+				}
+				if (depth == names.length) {
+					next = item;
+				}
+				else {
+					levels[depth + 1] = getChildren(depth, item);
+					depth++;
+				}
+			}
+			return next != null;
+		}
+
+		@Override
+		public Object next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Object result = next;
+			next = null;
+			return result;
+		}
+	}
+}
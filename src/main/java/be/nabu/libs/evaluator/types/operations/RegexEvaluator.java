@@ -0,0 +1,130 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.evaluator.types.operations;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import be.nabu.libs.evaluator.EvaluationException;
+import be.nabu.libs.evaluator.QueryPart;
+import be.nabu.libs.evaluator.api.Operation;
+import be.nabu.libs.types.api.ComplexContent;
+
+/**
+ * Evaluates "~" and "!~" without compiling the pattern on every evaluation.
+ * A literal pattern is compiled once when the evaluator is created, dynamic patterns are kept in a shared cache.
+ * Like the regular evaluation, the whole string has to match the pattern and values that are not strings are converted first.
+ * The operands are only evaluated once: a null value never matches, a null pattern matches nothing and an invalid dynamic pattern is reported here.
+ */
+class RegexEvaluator implements Evaluator {
+
+	private static final int MAX_PATTERNS = 256;
+	
+	/**
+	 * Lookups don't lock so concurrent matches are not serialized.
+	 * Instead of tracking which pattern was used last, the cache is simply emptied when it is full: a handful of patterns that are used over and over are cached again right away.
+	 */
+	private static final Map<String, Pattern> patterns = new ConcurrentHashMap<String, Pattern>();
+	
+	private final TypeClassicOperation operation;
+	private final Operation<ComplexContent> left, right;
+	private final Object leftValue;
+	private final Pattern pattern;
+	private final boolean negate;
+	
+	private RegexEvaluator(TypeClassicOperation operation, Operation<ComplexContent> left, Object leftValue, Operation<ComplexContent> right, Pattern pattern, boolean negate) {
+		this.operation = operation;
+		this.left = left;
+		this.leftValue = leftValue;
+		this.right = right;
+		this.pattern = pattern;
+		this.negate = negate;
+	}
+	
+	/**
+	 * Returns null if the operation is not a single (side effect free) match
+	 */
+	@SuppressWarnings("unchecked")
+	static RegexEvaluator newInstance(TypeClassicOperation operation) {
+		List<QueryPart> parts = operation.getParts();
+		if (parts.size() != 3 || (parts.get(1).getType() != QueryPart.Type.MATCHES && parts.get(1).getType() != QueryPart.Type.NOT_MATCHES) || !TypeOperationCompiler.isSideEffectFree(operation)) {
+			return null;
+		}
+		Object leftValue = ClassicCompiler.getLiteral(parts.get(0));
+		Object rightValue = ClassicCompiler.getLiteral(parts.get(2));
+		Operation<ComplexContent> left = leftValue == null && parts.get(0).getType() == QueryPart.Type.OPERATION ? (Operation<ComplexContent>) parts.get(0).getContent() : null;
+		Operation<ComplexContent> right = rightValue == null && parts.get(2).getType() == QueryPart.Type.OPERATION ? (Operation<ComplexContent>) parts.get(2).getContent() : null;
+		if ((leftValue == null && left == null) || (rightValue == null && right == null)) {
+			return null;
+		}
+		Pattern pattern = null;
+		if (rightValue != null) {
+			if (!(rightValue instanceof String)) {
+				return null;
+			}
+			try {
+				pattern = Pattern.compile((String) rightValue);
+			}
+			// the regular evaluation will report it
+			catch (PatternSyntaxException e) {
+				return null;
+			}
+		}
+		return new RegexEvaluator(operation, left, leftValue, right, pattern, parts.get(1).getType() == QueryPart.Type.NOT_MATCHES);
+	}
+	
+	private static Pattern getPattern(String regex) throws EvaluationException {
+		Pattern pattern = patterns.get(regex);
+		EvaluationListenerFactory.cacheAccessed("regex", pattern != null);
+		if (pattern == null) {
+			try {
+				pattern = Pattern.compile(regex);
+			}
+			catch (PatternSyntaxException e) {
+				EvaluationException exception = new EvaluationException("Invalid pattern: " + regex);
+				exception.initCause(e);
+				throw exception;
+			}
+			if (patterns.size() >= MAX_PATTERNS) {
+				patterns.clear();
+			}
+			patterns.put(regex, pattern);
+		}
+		return pattern;
+	}
+
+	@Override
+	public Object evaluate(ComplexContent context) throws EvaluationException {
+		String value = toString(left == null ? leftValue : left.evaluate(context));
+		Pattern pattern = this.pattern;
+		if (pattern == null) {
+			String regex = toString(right.evaluate(context));
+			if (regex != null) {
+				pattern = getPattern(regex);
+			}
+		}
+		return (value != null && pattern != null && pattern.matcher(value).matches()) != negate;
+	}
+	
+	private String toString(Object value) {
+		return value == null || value instanceof String ? (String) value : operation.getConverter().convert(value, String.class);
+	}
+}
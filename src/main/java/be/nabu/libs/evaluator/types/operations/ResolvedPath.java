@@ -0,0 +1,78 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.evaluator.types.operations;
+
+import java.util.Arrays;
+
+/**
+ * A variable operation resolved against an instance, e.g. my/path[1]/to[20]/something
+ * Every step has a name and optionally an index (-1 if there is none), the string form is only built when asked.
+ */
+public final class ResolvedPath {
+
+	private final String[] names;
+	private final int[] indexes;
+	
+	ResolvedPath(String[] names, int[] indexes) {
+		this.names = names;
+		this.indexes = indexes;
+	}
+	
+	public int size() {
+		return names.length;
+	}
+	
+	public String getName(int step) {
+		return names[step];
+	}
+	
+	/**
+	 * The index of the step or -1 if it has none
+	 */
+	public int getIndex(int step) {
+		return indexes[step];
+	}
+	
+	public StringBuilder appendTo(StringBuilder builder) {
+		for (int i = 0; i < names.length; i++) {
+			if (i > 0) {
+				builder.append('/');
+			}
+			builder.append(names[i]);
+			if (indexes[i] >= 0) {
+				builder.append('[').append(indexes[i]).append(']');
+			}
+		}
+		return builder;
+	}
+	
+	@Override
+	public String toString() {
+		return appendTo(new StringBuilder()).toString();
+	}
+
+	@Override
+	public boolean equals(Object object) {
+		return object instanceof ResolvedPath && Arrays.equals(names, ((ResolvedPath) object).names) && Arrays.equals(indexes, ((ResolvedPath) object).indexes);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * Arrays.hashCode(names) + Arrays.hashCode(indexes);
+	}
+}
@@ -0,0 +1,92 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.evaluator.types.operations;
+
+/**
+ * A small cache that lives on an operation and matches on the identity of the types it was calculated for.
+ * An operation is usually only ever run against a handful of types so we keep a few entries in an array that is replaced as a whole when it changes.
+ * This means lookups are lock free and never see a half built entry, the cost is that an update copies the (tiny) array.
+ * Once the maximum size is reached, the oldest entry is dropped so dynamically created types can not pile up.
+ */
+class TypeCache<T> {
+
+	private static final int DEFAULT_SIZE = 8;
+
+	private final int maxSize;
+	private volatile Entry[] entries = new Entry[0];
+
+	TypeCache() {
+		this(DEFAULT_SIZE);
+	}
+
+	TypeCache(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Returns null if nothing was cached yet for this combination
+	 */
+	@SuppressWarnings("unchecked")
+	T get(Object first, Object second, int index) {
+		Entry[] entries = this.entries;
+		for (int i = 0; i < entries.length; i++) {
+			if (entries[i].first == first && entries[i].second == second && entries[i].index == index) {
+				return (T) entries[i].value;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Replaces the value if something was already cached for this combination, so caching the same combination again does not push out the others
+	 */
+	synchronized void put(Object first, Object second, int index, T value) {
+		Entry[] current = this.entries;
+		for (int i = 0; i < current.length; i++) {
+			if (current[i].first == first && current[i].second == second && current[i].index == index) {
+				if (current[i].value != value) {
+					Entry[] updated = current.clone();
+					updated[i] = new Entry(first, second, index, value);
+					this.entries = updated;
+				}
+				return;
+			}
+		}
+		int keep = Math.min(current.length, maxSize - 1);
+		Entry[] updated = new Entry[keep + 1];
+		System.arraycopy(current, current.length - keep, updated, 0, keep);
+		updated[keep] = new Entry(first, second, index, value);
+		this.entries = updated;
+	}
+
+	void clear() {
+		this.entries = new Entry[0];
+	}
+
+	private static class Entry {
+		private final Object first, second, value;
+		private final int index;
+
+		Entry(Object first, Object second, int index, Object value) {
+			this.first = first;
+			this.second = second;
+			this.index = index;
+			this.value = value;
+		}
+	}
+}
@@ -19,14 +19,19 @@ package be.nabu.libs.evaluator.types.operations;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
 
 import be.nabu.libs.converter.ConverterFactory;
 import be.nabu.libs.converter.api.Converter;
+import be.nabu.libs.evaluator.EvaluationException;
 import be.nabu.libs.evaluator.QueryPart;
 import be.nabu.libs.evaluator.impl.ClassicOperation;
 import be.nabu.libs.evaluator.impl.VariableOperation;
+import be.nabu.libs.evaluator.types.api.EvaluationListener;
 import be.nabu.libs.evaluator.types.api.TypeOperation;
+import be.nabu.libs.evaluator.types.api.TypingContext;
 import be.nabu.libs.property.ValueUtils;
 import be.nabu.libs.property.api.Value;
 import be.nabu.libs.types.SimpleTypeWrapperFactory;
@@ -45,6 +50,29 @@ public class TypeClassicOperation extends ClassicOperation<ComplexContent> imple
 	
 	private Converter converter;
 	
+	/**
+	 * A NaN is cached when neither operand has an epsilon so we can tell it apart from a cache miss
+	 */
+	private static final Double NO_EPSILON = Double.NaN;
+	private final TypeCache<Double> epsilons = new TypeCache<Double>();
+	
+	/**
+	 * The compiled evaluators per context type, see {@link TypeOperationCompiler}
+	 */
+	private static final Evaluator NOT_COMPILABLE = context -> null;
+	private final TypeCache<Evaluator> evaluators = new TypeCache<Evaluator>();
+	
+	/**
+	 * The value of this operation if it only consists of constants, see {@link TypeOperationOptimizer}
+	 */
+	private static final Object NOT_FOLDED = new Object();
+	private volatile Object folded = NOT_FOLDED;
+	
+	/**
+	 * Regular expression matches and membership checks are handled separately as they do not need an evaluator compiled per context type, see {@link RegexEvaluator} and {@link MembershipEvaluator}
+	 */
+	private volatile Evaluator operator;
+	
 	public TypeClassicOperation() {
 		// auto construct
 	}
@@ -53,22 +81,45 @@ public class TypeClassicOperation extends ClassicOperation<ComplexContent> imple
 		super(allowOperatorOverloading);
 	}
 
-	private static List<QueryPart.Type> mathOperators = Arrays.asList(new QueryPart.Type[] {
+	private static final Set<QueryPart.Type> mathOperators = EnumSet.of(
 		QueryPart.Type.ADD,
 		QueryPart.Type.SUBSTRACT,
 		QueryPart.Type.DIVIDE,
 		QueryPart.Type.MULTIPLY,
 		QueryPart.Type.MOD,
 		QueryPart.Type.POWER
-	});
+	);
 	
-	private static List<QueryPart.Type> booleanOperators = Arrays.asList(new QueryPart.Type[] {
+	private static final Set<QueryPart.Type> booleanOperators = EnumSet.of(
 		QueryPart.Type.LOGICAL_AND,
 		QueryPart.Type.LOGICAL_OR,
 		QueryPart.Type.NOT,
 		QueryPart.Type.XOR,
 		QueryPart.Type.NOT_XOR
-	});
+	);
+	
+	/**
+	 * The positions of the operators in the parts, used when typing and validating the operation.
+	 * The parts don't change once the operation is analyzed, but the analyzer does not tell us when it is done so they are looked up on first use.
+	 * The interpreted evaluation (inherited from ClassicOperation) does its own scan of the parts, the compiled evaluators don't scan at all.
+	 */
+	private volatile int[] operatorPositions;
+	
+	private int[] getOperatorPositions() {
+		int[] operatorPositions = this.operatorPositions;
+		if (operatorPositions == null) {
+			int amount = 0;
+			int[] positions = new int[getParts().size()];
+			for (int i = 0; i < positions.length; i++) {
+				if (getParts().get(i).getType().isOperator()) {
+					positions[amount++] = i;
+				}
+			}
+			operatorPositions = Arrays.copyOf(positions, amount);
+			this.operatorPositions = operatorPositions;
+		}
+		return operatorPositions;
+	}
 
 	public Converter getConverter() {
 		if (converter == null)
@@ -93,7 +144,7 @@ public class TypeClassicOperation extends ClassicOperation<ComplexContent> imple
 		return null;
 	}
 	
-	private Type getOperand(ComplexType context, int position, List<Validation<?>> messages) {
+	private Type getOperand(ComplexType context, int position, List<Validation<?>> messages, TypingContext typing) {
 		QueryPart part = getParts().get(position);
 		if (part.getType() == QueryPart.Type.NULL) {
 			return null;
@@ -109,55 +160,65 @@ public class TypeClassicOperation extends ClassicOperation<ComplexContent> imple
 		}
 		else if (part.getType() == QueryPart.Type.OPERATION) {
 			int size = messages.size();
-			messages.addAll(((TypeOperation) part.getContent()).validate(context));
+			messages.addAll(((TypeOperation) part.getContent()).validate(context, typing));
 			// only resolve the operation if it is valid
-			return size == messages.size() ? ((TypeOperation) part.getContent()).getReturnType(context) : null;
+			return size == messages.size() ? ((TypeOperation) part.getContent()).getReturnType(context, typing) : null;
 		}
 		else
 			return null;
 	}
 	
-	private CollectionHandlerProvider<?, ?> getOperandCollectionHandler(ComplexType context, int position) {
+	private CollectionHandlerProvider<?, ?> getOperandCollectionHandler(ComplexType context, int position, TypingContext typing) {
 		QueryPart part = getParts().get(position);
 		if (part.getType() == QueryPart.Type.OPERATION) {
 			// only resolve the operation if it is valid
-			return ((TypeOperation) part.getContent()).getReturnCollectionHandler(context);
+			return ((TypeOperation) part.getContent()).getReturnCollectionHandler(context, typing);
 		}
 		return null;
 	}
 
 	@Override
 	public Type getReturnType(ComplexType context) {
+		return getReturnType(context, new TypingContext());
+	}
+	
+	@Override
+	public Type getReturnType(ComplexType context, TypingContext typing) {
 		// get the operator
-		for (int i = 0; i < getParts().size(); i++) {
-			// there's basically two kinds of operators: math & boolean
-			// the result of a math operation depends entirely on the left operand
-			if (getParts().get(i).getType().isOperator()) {
-				if (mathOperators.contains(getParts().get(i).getType())) {
-					QueryPart left = getParts().get(i - 1);
-					// the left operand determines the result
-					if (left.getType() == QueryPart.Type.OPERATION) {
-						return ((TypeOperation) left.getContent()).getReturnType(context);
-					}
-					else if (left.getType().isNative()) {
-						return TypeNativeOperation.getType(left.getType());
-					}
-					else {
-						throw new RuntimeException("Unexpected left operand: " + left);
-					}
-				}
-				else {
-					return SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(Boolean.class);
-				}
+		int[] operatorPositions = getOperatorPositions();
+		if (operatorPositions.length == 0) {
+			throw new RuntimeException("No operator found");
+		}
+		int i = operatorPositions[0];
+		// there's basically two kinds of operators: math & boolean
+		// the result of a math operation depends entirely on the left operand
+		if (mathOperators.contains(getParts().get(i).getType())) {
+			QueryPart left = getParts().get(i - 1);
+			// the left operand determines the result
+			if (left.getType() == QueryPart.Type.OPERATION) {
+				return ((TypeOperation) left.getContent()).getReturnType(context, typing);
+			}
+			else if (left.getType().isNative()) {
+				return TypeNativeOperation.getType(left.getType());
+			}
+			else {
+				throw new RuntimeException("Unexpected left operand: " + left);
 			}
 		}
-		throw new RuntimeException("No operator found");
+		else {
+			return SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(Boolean.class);
+		}
 	}
 
 	@Override
 	public List<Validation<?>> validate(ComplexType context) {
+		return validate(context, new TypingContext());
+	}
+	
+	@Override
+	public List<Validation<?>> validate(ComplexType context, TypingContext typing) {
 		List<Validation<?>> messages = new ArrayList<Validation<?>>();
-		for (int i = 0; i < getParts().size(); i++) {
+		for (int i : getOperatorPositions()) {
 			QueryPart part = getParts().get(i);
 			// only interested in operators
 			if (part.getType().isOperator()) {
@@ -174,7 +235,7 @@ public class TypeClassicOperation extends ClassicOperation<ComplexContent> imple
 					int size = messages.size();
 					Type leftOperand = null;
 					try {
-						leftOperand = part.getType().hasLeftOperand() ? getOperand(context, i - 1, messages) : null;
+						leftOperand = part.getType().hasLeftOperand() ? getOperand(context, i - 1, messages, typing) : null;
 					}
 					catch (Exception e) {
 						messages.add(new ValidationMessage(Severity.ERROR, "The operator " + part + " expects a left operand, but could not resolve: " + getParts().get(i - 1).getContent() + ": " + e.getMessage()));
@@ -182,7 +243,7 @@ public class TypeClassicOperation extends ClassicOperation<ComplexContent> imple
 					
 					Type rightOperand = null;
 					try {
-						rightOperand = part.getType().hasRightOperand() ? getOperand(context, i + 1, messages) : null;
+						rightOperand = part.getType().hasRightOperand() ? getOperand(context, i + 1, messages, typing) : null;
 					}
 					catch (Exception e) {
 						messages.add(new ValidationMessage(Severity.ERROR, "The operator " + part + " expects a right operand, but could not resolve: " + getParts().get(i + 1).getContent() + ": " + e.getMessage()));
@@ -302,7 +363,7 @@ public class TypeClassicOperation extends ClassicOperation<ComplexContent> imple
 									// we only get the return type, which is (almost) never a list, it is the properties of the element around it that make it a list
 								}
 							}
-							else if (!Iterable.class.isAssignableFrom(rightClass) && !Object[].class.isAssignableFrom(rightClass) && getOperandCollectionHandler(context, i + 1) == null) {
+							else if (!Iterable.class.isAssignableFrom(rightClass) && !Object[].class.isAssignableFrom(rightClass) && getOperandCollectionHandler(context, i + 1, typing) == null) {
 								messages.add(new ValidationMessage(Severity.ERROR, "The operator " + part + " only supports a collection as the right operand, it is however of type " + rightClass));
 							}
 						break;
@@ -336,18 +397,7 @@ public class TypeClassicOperation extends ClassicOperation<ComplexContent> imple
 	@Override
 	protected double getDoubleEpsilon(ComplexContent context, int leftPosition, int rightPosition, double left, double right) {
 		if (context != null) {
-			Double epsilon = null;
-			Value<?>[] leftOperandProperties = getOperandProperties(context.getType(), leftPosition);
-			if (leftOperandProperties != null) {
-				epsilon = ValueUtils.getValue(EpsilonProperty.getInstance(), leftOperandProperties);
-			}
-			Value<?>[] rightOperandProperties = getOperandProperties(context.getType(), rightPosition);
-			if (rightOperandProperties != null) {
-				Double rightEpsilon = ValueUtils.getValue(EpsilonProperty.getInstance(), rightOperandProperties);
-				if (rightEpsilon != null && (epsilon == null || rightEpsilon > epsilon)) {
-					epsilon = rightEpsilon;
-				}
-			}
+			Double epsilon = getEpsilon(context.getType(), leftPosition, rightPosition);
 			if (epsilon != null) {
 				return epsilon;
 			}
@@ -355,4 +405,145 @@ public class TypeClassicOperation extends ClassicOperation<ComplexContent> imple
 		return super.getDoubleEpsilon(context, leftPosition, rightPosition, left, right);
 	}
 	
+	/**
+	 * Resolving the epsilon means typing both operands which is far too expensive to do for every comparison.
+	 * The outcome only depends on the type of the context and, for absolute paths, on the type of the runtime root so we cache it per combination.
+	 * Operands without an epsilon are cached as well (as NaN) as that is the most common outcome, only a resolution that fails with an exception is not cached so it is attempted again.
+	 */
+	private Double getEpsilon(ComplexType type, int leftPosition, int rightPosition) {
+		Object root = VariableOperation.getCurrentRootContext();
+		ComplexType rootType = root instanceof ComplexContent ? ((ComplexContent) root).getType() : null;
+		Double epsilon = epsilons.get(type, rootType, leftPosition);
+		EvaluationListenerFactory.cacheAccessed("epsilon", epsilon != null);
+		if (epsilon == null) {
+			EvaluationListenerFactory.resolvedAtRuntime(this, type);
+			epsilon = calculateEpsilon(type, leftPosition, rightPosition);
+			epsilons.put(type, rootType, leftPosition, epsilon == null ? NO_EPSILON : epsilon);
+		}
+		return epsilon == null || epsilon.isNaN() ? null : epsilon;
+	}
+	
+	private Double calculateEpsilon(ComplexType type, int leftPosition, int rightPosition) {
+		Double epsilon = null;
+		Value<?>[] leftOperandProperties = getOperandProperties(type, leftPosition);
+		if (leftOperandProperties != null) {
+			epsilon = ValueUtils.getValue(EpsilonProperty.getInstance(), leftOperandProperties);
+		}
+		Value<?>[] rightOperandProperties = getOperandProperties(type, rightPosition);
+		if (rightOperandProperties != null) {
+			Double rightEpsilon = ValueUtils.getValue(EpsilonProperty.getInstance(), rightOperandProperties);
+			if (rightEpsilon != null && (epsilon == null || rightEpsilon > epsilon)) {
+				epsilon = rightEpsilon;
+			}
+		}
+		return epsilon;
+	}
+	
+	@Override
+	public Object evaluate(ComplexContent context) throws EvaluationException {
+		EvaluationListener listener = EvaluationListenerFactory.getInstance().getListener();
+		return listener == null ? evaluateUnobserved(context) : EvaluationListenerFactory.observe(listener, this, context, this::evaluateUnobserved);
+	}
+	
+	private Object evaluateUnobserved(ComplexContent context) throws EvaluationException {
+		Object folded = this.folded;
+		if (folded != NOT_FOLDED) {
+			return folded;
+		}
+		Evaluator evaluator = evaluators.get(context == null ? null : context.getType(), null, 0);
+		if (evaluator != null && evaluator != NOT_COMPILABLE) {
+			return evaluator.evaluate(context);
+		}
+		Evaluator operator = getOperatorEvaluator();
+		return operator == null ? super.evaluate(context) : operator.evaluate(context);
+	}
+	
+	private Evaluator getOperatorEvaluator() {
+		if (operator == null) {
+			Evaluator evaluator = RegexEvaluator.newInstance(this);
+			if (evaluator == null) {
+				evaluator = MembershipEvaluator.newInstance(this);
+			}
+			operator = evaluator == null ? NOT_COMPILABLE : evaluator;
+		}
+		return operator == NOT_COMPILABLE ? null : operator;
+	}
+	
+	/**
+	 * The regular evaluation, this is what compiled evaluators fall back to if the runtime values are not what they expected
+	 */
+	Object interpret(ComplexContent context) throws EvaluationException {
+		return super.evaluate(context);
+	}
+	
+	/**
+	 * Compiles this operation for the given context type, once compiled it is used by every evaluation against a context of that type
+	 */
+	Evaluator compile(ComplexType context) {
+		getOperatorEvaluator();
+		Evaluator evaluator = evaluators.get(context, null, 0);
+		if (evaluator == null) {
+			evaluator = ClassicCompiler.compile(this, context);
+			evaluators.put(context, null, 0, evaluator == null ? NOT_COMPILABLE : evaluator);
+		}
+		return evaluator == NOT_COMPILABLE ? null : evaluator;
+	}
+	
+	boolean isFolded() {
+		return folded != NOT_FOLDED;
+	}
+	
+	Object getFolded() {
+		return folded == NOT_FOLDED ? null : folded;
+	}
+	
+	/**
+	 * Calculates the value once if all the operands are constants (natives or folded operations).
+	 * Equality checks on decimals are not folded as they depend on the epsilon of the context.
+	 */
+	boolean fold() {
+		if (isFolded()) {
+			return true;
+		}
+		boolean decimal = false, equality = false;
+		for (QueryPart part : getParts()) {
+			if (part.getType().isOperator()) {
+				equality |= part.getType() == QueryPart.Type.EQUALS || part.getType() == QueryPart.Type.NOT_EQUALS;
+				continue;
+			}
+			else if (part.getType().isNative()) {
+				decimal |= part.getType() == QueryPart.Type.NUMBER_DECIMAL;
+			}
+			else if (part.getType() == QueryPart.Type.OPERATION && part.getContent() instanceof TypeNativeOperation) {
+				decimal |= ((TypeNativeOperation) part.getContent()).getParts().get(0).getType() == QueryPart.Type.NUMBER_DECIMAL;
+			}
+			else if (part.getType() == QueryPart.Type.OPERATION && part.getContent() instanceof TypeClassicOperation && ((TypeClassicOperation) part.getContent()).isFolded()) {
+				decimal |= ((TypeClassicOperation) part.getContent()).getFolded() instanceof Double;
+			}
+			else {
+				return false;
+			}
+		}
+		if (decimal && equality) {
+			return false;
+		}
+		try {
+			folded = interpret(null);
+			return true;
+		}
+		// leave it to the regular evaluation to report the problem
+		catch (Exception e) {
+			return false;
+		}
+	}
+	
+	@Override
+	public void invalidate() {
+		epsilons.clear();
+		evaluators.clear();
+		operator = null;
+		operatorPositions = null;
+		TypeOperationCompiler.invalidateChildren(this);
+	}
+	
 }
\ No newline at end of file
@@ -17,12 +17,22 @@
 
 package be.nabu.libs.evaluator.types.operations;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.util.ArrayList;
 import java.util.List;
 
+import be.nabu.libs.converter.ConverterFactory;
+import be.nabu.libs.evaluator.EvaluationException;
+import be.nabu.libs.evaluator.QueryPart;
+import be.nabu.libs.evaluator.api.Operation;
 import be.nabu.libs.evaluator.impl.MethodOperation;
+import be.nabu.libs.evaluator.types.api.EvaluationListener;
 import be.nabu.libs.evaluator.types.api.TypeOperation;
+import be.nabu.libs.evaluator.types.api.TypingContext;
 import be.nabu.libs.types.CollectionHandlerFactory;
 import be.nabu.libs.types.SimpleTypeWrapperFactory;
 import be.nabu.libs.types.api.CollectionHandlerProvider;
@@ -38,17 +48,35 @@ import be.nabu.libs.validator.api.ValidationMessage.Severity;
 
 public class TypeMethodOperation extends MethodOperation<ComplexContent> implements TypeOperation {
 
+	/**
+	 * The method does not depend on the context so it is resolved once
+	 */
+	private volatile ResolvedMethod resolved;
+	
+	/**
+	 * How the arguments should be converted before they are passed to the method, per context type.
+	 * The plan is built when the operation is validated or compiled for a type, the evaluation never builds one itself: without a plan it uses the regular evaluation.
+	 * The sentinel means the operation does not validate against the type so there is no plan.
+	 */
+	private static final Coercion [] NO_PLAN = new Coercion[0];
+	private final TypeCache<Coercion[]> coercions = new TypeCache<Coercion[]>();
+	
+	private ResolvedMethod getResolvedMethod() throws Exception {
+		if (resolved == null) {
+			resolved = new ResolvedMethod(getMethod(getParts().size() - 1), getParts());
+		}
+		return resolved;
+	}
+	
 	@Override
 	public Type getReturnType(ComplexType context) {
+		return getReturnType(context, new TypingContext());
+	}
+	
+	@Override
+	public Type getReturnType(ComplexType context, TypingContext typing) {
 		try {
-			Method method = getMethod(getParts().size() - 1);
-			Class<?> returnType = method.getReturnType();
-			CollectionHandlerProvider<?, ?> handler = CollectionHandlerFactory.getInstance().getHandler().getHandler(returnType);
-			if (handler != null) {
-				returnType = handler.getComponentType(returnType);
-			}
-			DefinedSimpleType<?> wrap = SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(returnType);
-			return wrap != null ? wrap : BeanResolver.getInstance().resolve(returnType);
+			return getResolvedMethod().returnType;
 		}
 		catch (Exception e) {
 			throw new RuntimeException("Could not find method: " + getParts().get(0).getContent());
@@ -57,19 +85,27 @@ public class TypeMethodOperation extends MethodOperation<ComplexContent> impleme
 
 	@Override
 	public List<Validation<?>> validate(ComplexType context) {
+		return validate(context, new TypingContext());
+	}
+	
+	@Override
+	public List<Validation<?>> validate(ComplexType context, TypingContext typing) {
 		List<Validation<?>> messages = new ArrayList<Validation<?>>();
 		try {
-			Method method = getMethod(getParts().size() - 1);
+			Method method = getResolvedMethod().method;
 			Class<?> [] parameterTypes = method.getParameterTypes();
+			Coercion [] plan = new Coercion[getParts().size() - 1];
 			for (int i = 1; i < getParts().size(); i++) {
 				TypeOperation argumentOperation = (TypeOperation) getParts().get(i).getContent();
-				Type returnType = argumentOperation.getReturnType(context);
+				Type returnType = argumentOperation.getReturnType(context, typing);
+				plan[i - 1] = Coercion.NONE;
 				if (returnType instanceof ComplexType) {
 					if (!parameterTypes[i - 1].isAssignableFrom(ComplexContent.class))
 						messages.add(new ValidationMessage(Severity.ERROR, "Argument " + i + " expects a " + parameterTypes[i - 1] + " but will instead receive a ComplexContent instance"));
 				}
 				else {
 					Class<?> returnClass = ((SimpleType<?>) returnType).getInstanceClass();
+					plan[i - 1] = Coercion.of(parameterTypes[i - 1], returnClass);
 					boolean isPrimitiveNumber = parameterTypes[i - 1].equals(double.class)
 						|| parameterTypes[i - 1].equals(long.class)
 						|| parameterTypes[i - 1].equals(int.class)
@@ -86,6 +122,7 @@ public class TypeMethodOperation extends MethodOperation<ComplexContent> impleme
 					}
 				}
 			}
+			coercions.put(context, null, 0, messages.isEmpty() ? plan : NO_PLAN);
 		}
 		catch (Exception e) {
 			messages.add(new ValidationMessage(Severity.ERROR, "Method '" + getParts().get(0).getContent() + "' could not be resolved: " + e.getMessage()));
@@ -95,9 +132,222 @@ public class TypeMethodOperation extends MethodOperation<ComplexContent> impleme
 	
 	@Override
 	public CollectionHandlerProvider<?, ?> getReturnCollectionHandler(ComplexType context) {
-		Method method = (Method) getParts().get(0).getContent();
-		Class<?> returnType = method.getReturnType();
-		CollectionHandlerProvider<?, ?> handler = CollectionHandlerFactory.getInstance().getHandler().getHandler(returnType);
-		return handler;
+		try {
+			return getResolvedMethod().collectionHandler;
+		}
+		catch (Exception e) {
+			throw new RuntimeException("Could not find method: " + getParts().get(0).getContent());
+		}
+	}
+	
+	/**
+	 * Builds the coercion plan for the given type if there is none yet, this validates the operation against the type
+	 */
+	void compile(ComplexType context) {
+		if (coercions.get(context, null, 0) == null) {
+			validate(context);
+		}
+	}
+	
+	/**
+	 * If there is a coercion plan for the type, we call the method through a method handle.
+	 * Arguments that don't fit the plan are converted with the converter, without a plan (or for a method that can't be called directly) the regular evaluation is used.
+	 */
+	@Override
+	public Object evaluate(ComplexContent context) throws EvaluationException {
+		EvaluationListener listener = EvaluationListenerFactory.getInstance().getListener();
+		return listener == null ? evaluateUnobserved(context) : EvaluationListenerFactory.observe(listener, this, context, this::evaluateUnobserved);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private Object evaluateUnobserved(ComplexContent context) throws EvaluationException {
+		ResolvedMethod method;
+		try {
+			method = getResolvedMethod();
+		}
+		catch (Exception e) {
+			return super.evaluate(context);
+		}
+		Coercion [] plan = method.handle == null ? null : getCoercionPlan(context == null ? null : context.getType());
+		if (plan == null) {
+			return super.evaluate(context);
+		}
+		Object [] arguments = new Object[getParts().size() - 1];
+		for (int i = 1; i < getParts().size(); i++) {
+			arguments[i - 1] = ((Operation<ComplexContent>) getParts().get(i).getContent()).evaluate(context);
+		}
+		for (int i = 0; i < plan.length; i++) {
+			arguments[i] = plan[i].apply(arguments[i]);
+		}
+		if (!method.accepts(arguments)) {
+			convert(method, arguments);
+		}
+		try {
+			return (Object) method.handle.invokeExact(arguments);
+		}
+		catch (Throwable e) {
+			EvaluationException exception = new EvaluationException("Could not invoke method: " + getParts().get(0).getContent());
+			exception.initCause(e);
+			throw exception;
+		}
+	}
+	
+	/**
+	 * Returns null if there is no plan for the type
+	 */
+	private Coercion [] getCoercionPlan(ComplexType context) {
+		Coercion [] plan = coercions.get(context, null, 0);
+		EvaluationListenerFactory.cacheAccessed("coercion", plan != null && plan != NO_PLAN);
+		return plan == NO_PLAN ? null : plan;
+	}
+	
+	/**
+	 * Converts the arguments that the plan could not handle, the arguments have already been evaluated so they are not evaluated again
+	 */
+	private void convert(ResolvedMethod method, Object [] arguments) throws EvaluationException {
+		for (int i = 0; i < arguments.length; i++) {
+			Class<?> parameterType = ClassicCompiler.box(method.parameterTypes[i]);
+			if (arguments[i] != null && !parameterType.isInstance(arguments[i])) {
+				Object converted = ConverterFactory.getInstance().getConverter().convert(arguments[i], parameterType);
+				if (converted == null) {
+					throw new EvaluationException("Argument " + (i + 1) + " of method '" + getParts().get(0).getContent() + "' can not be converted from " + arguments[i].getClass() + " to " + parameterType);
+				}
+				arguments[i] = converted;
+			}
+			else if (arguments[i] == null && method.parameterTypes[i].isPrimitive()) {
+				throw new EvaluationException("Argument " + (i + 1) + " of method '" + getParts().get(0).getContent() + "' can not be null");
+			}
+		}
+	}
+	
+	@Override
+	public void invalidate() {
+		coercions.clear();
+		TypeOperationCompiler.invalidateChildren(this);
+	}
+	
+	/**
+	 * The numeric conversions that can be done without the converter, the source is always an integral value unless the target is a floating point
+	 */
+	private enum Coercion {
+		NONE {
+			@Override
+			Object apply(Object value) {
+				return value;
+			}
+		},
+		INT {
+			@Override
+			Object apply(Object value) {
+				return ClassicCompiler.isIntegral(value) && ((Number) value).longValue() >= Integer.MIN_VALUE && ((Number) value).longValue() <= Integer.MAX_VALUE ? Integer.valueOf(((Number) value).intValue()) : value;
+			}
+		},
+		LONG {
+			@Override
+			Object apply(Object value) {
+				return ClassicCompiler.isIntegral(value) ? Long.valueOf(((Number) value).longValue()) : value;
+			}
+		},
+		SHORT {
+			@Override
+			Object apply(Object value) {
+				return ClassicCompiler.isIntegral(value) && ((Number) value).longValue() >= Short.MIN_VALUE && ((Number) value).longValue() <= Short.MAX_VALUE ? Short.valueOf(((Number) value).shortValue()) : value;
+			}
+		},
+		DOUBLE {
+			@Override
+			Object apply(Object value) {
+				return ClassicCompiler.isIntegral(value) || value instanceof Float ? Double.valueOf(((Number) value).doubleValue()) : value;
+			}
+		},
+		FLOAT {
+			@Override
+			Object apply(Object value) {
+				return ClassicCompiler.isIntegral(value) || value instanceof Double ? Float.valueOf(((Number) value).floatValue()) : value;
+			}
+		};
+		
+		/**
+		 * Values that don't match what we expect are returned as is, they will not be accepted by the method and are converted with the converter instead
+		 */
+		abstract Object apply(Object value);
+		
+		static Coercion of(Class<?> parameterType, Class<?> argumentClass) {
+			Class<?> target = ClassicCompiler.box(parameterType);
+			Class<?> source = ClassicCompiler.box(argumentClass);
+			if (target.equals(source) || !(ClassicCompiler.isIntegral(source) || Double.class.equals(source) || Float.class.equals(source))) {
+				return NONE;
+			}
+			boolean integral = ClassicCompiler.isIntegral(source);
+			if (Integer.class.equals(target) && integral) {
+				return INT;
+			}
+			else if (Long.class.equals(target) && integral) {
+				return LONG;
+			}
+			else if (Short.class.equals(target) && integral) {
+				return SHORT;
+			}
+			else if (Double.class.equals(target)) {
+				return DOUBLE;
+			}
+			else if (Float.class.equals(target)) {
+				return FLOAT;
+			}
+			return NONE;
+		}
+	}
+	
+	private static class ResolvedMethod {
+		private final Method method;
+		private final Type returnType;
+		private final CollectionHandlerProvider<?, ?> collectionHandler;
+		private final MethodHandle handle;
+		private final Class<?> [] parameterTypes;
+		
+		ResolvedMethod(Method method, List<QueryPart> parts) {
+			this.method = method;
+			Class<?> returnClass = method.getReturnType();
+			this.collectionHandler = CollectionHandlerFactory.getInstance().getHandler().getHandler(returnClass);
+			if (collectionHandler != null) {
+				returnClass = collectionHandler.getComponentType(returnClass);
+			}
+			DefinedSimpleType<?> wrap = SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(returnClass);
+			this.returnType = wrap != null ? wrap : BeanResolver.getInstance().resolve(returnClass);
+			this.parameterTypes = method.getParameterTypes();
+			this.handle = getHandle(method, parts);
+		}
+		
+		/**
+		 * We only call static methods directly, the arguments are evaluated once and in order so they can be anything (including other method calls).
+		 * Collections are returned through the regular evaluation.
+		 */
+		private MethodHandle getHandle(Method method, List<QueryPart> parts) {
+			if (!Modifier.isStatic(method.getModifiers()) || method.isVarArgs() || collectionHandler != null || parameterTypes.length != parts.size() - 1) {
+				return null;
+			}
+			try {
+				return MethodHandles.publicLookup().unreflect(method)
+					.asSpreader(Object[].class, parameterTypes.length)
+					.asType(MethodType.methodType(Object.class, Object[].class));
+			}
+			catch (IllegalAccessException e) {
+				return null;
+			}
+		}
+		
+		boolean accepts(Object [] arguments) {
+			for (int i = 0; i < arguments.length; i++) {
+				if (arguments[i] == null) {
+					if (parameterTypes[i].isPrimitive()) {
+						return false;
+					}
+				}
+				else if (!ClassicCompiler.box(parameterTypes[i]).isInstance(arguments[i])) {
+					return false;
+				}
+			}
+			return true;
+		}
 	}
 }
@@ -0,0 +1,139 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.evaluator.types.operations;
+
+import be.nabu.libs.evaluator.QueryPart;
+import be.nabu.libs.evaluator.api.Operation;
+import be.nabu.libs.evaluator.types.api.TypeOperation;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.api.Element;
+import be.nabu.libs.types.java.BeanType;
+
+/**
+ * Compiles an operation tree for a specific context type.
+ * The classic operations in the tree are turned into evaluators that are specialized for the (validated) types of their operands and the variable paths are bound to their elements.
+ * The compiled evaluators are kept on the operations themselves so the returned operation can simply be evaluated as usual.
+ * Contexts of another type and anything that could not be typed conclusively (e.g. a bean type of Object) are still handled by the regular evaluation.
+ */
+public class TypeOperationCompiler {
+
+	public static TypeOperation compile(TypeOperation operation, ComplexType context) {
+		// invalid operations are left to the regular evaluation which will report the actual problem
+		if (operation.validate(context).isEmpty()) {
+			compile(operation, context, context);
+		}
+		return operation;
+	}
+	
+	private static void compile(Operation<?> operation, ComplexType context, ComplexType root) {
+		if (context == null || (context instanceof BeanType && Object.class.equals(((BeanType<?>) context).getBeanClass()))) {
+			return;
+		}
+		if (operation instanceof TypeClassicOperation) {
+			((TypeClassicOperation) operation).compile(context);
+			for (QueryPart part : operation.getParts()) {
+				if (part.getType() == QueryPart.Type.OPERATION) {
+					compile((Operation<?>) part.getContent(), context, root);
+				}
+			}
+		}
+		else if (operation instanceof TypeMethodOperation) {
+			((TypeMethodOperation) operation).compile(context);
+			for (QueryPart part : operation.getParts()) {
+				if (part.getType() == QueryPart.Type.OPERATION) {
+					compile((Operation<?>) part.getContent(), context, root);
+				}
+			}
+		}
+		// subqueries in a path are evaluated against the items they filter
+		else if (operation instanceof TypeVariableOperation) {
+			ComplexType current = context;
+			for (int i = 0; i < operation.getParts().size(); i++) {
+				QueryPart part = operation.getParts().get(i);
+				if (part.getType() == QueryPart.Type.OPERATION) {
+					compile((Operation<?>) part.getContent(), current, root);
+				}
+				else if (part.getType() == QueryPart.Type.VARIABLE) {
+					String path = part.getContent().toString();
+					if ("$this".equals(path)) {
+						continue;
+					}
+					else if (path.startsWith("/")) {
+						if (i == 0) {
+							current = root;
+						}
+						path = path.substring(1);
+					}
+					if (current == null) {
+						return;
+					}
+					Element<?> element = current.get(path);
+					if (element == null && path.startsWith("@")) {
+						element = current.get(path.substring(1));
+					}
+					if (element == null) {
+						return;
+					}
+					current = element.getType() instanceof ComplexType ? (ComplexType) element.getType() : null;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * An operation is side effect free if it only consists of the operations in this package and does not call any methods.
+	 * Such an operation can be evaluated again (or in a different order) without changing the outcome.
+	 */
+	public static boolean isSideEffectFree(Operation<?> operation) {
+		if (!(operation instanceof TypeOperation) || operation instanceof TypeMethodOperation) {
+			return false;
+		}
+		for (QueryPart part : operation.getParts()) {
+			if (part.getType() == QueryPart.Type.OPERATION && !isSideEffectFree((Operation<?>) part.getContent())) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * An operation is item local if its variables are all relative paths without subqueries, it does not depend on anything but the context it is evaluated against.
+	 */
+	static boolean isItemLocal(Operation<?> operation) {
+		for (int i = 0; i < operation.getParts().size(); i++) {
+			QueryPart part = operation.getParts().get(i);
+			if (operation instanceof TypeVariableOperation) {
+				if (part.getType() != QueryPart.Type.VARIABLE || "$this".equals(part.getContent()) || (i == 0 && part.getContent().toString().startsWith("/"))) {
+					return false;
+				}
+			}
+			else if (part.getType() == QueryPart.Type.OPERATION && !isItemLocal((Operation<?>) part.getContent())) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	static void invalidateChildren(Operation<?> operation) {
+		for (QueryPart part : operation.getParts()) {
+			if (part.getType() == QueryPart.Type.OPERATION && part.getContent() instanceof TypeOperation) {
+				((TypeOperation) part.getContent()).invalidate();
+			}
+		}
+	}
+}
@@ -0,0 +1,51 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.evaluator.types.operations;
+
+import be.nabu.libs.evaluator.QueryPart;
+import be.nabu.libs.evaluator.api.Operation;
+import be.nabu.libs.evaluator.types.api.TypeOperation;
+import be.nabu.libs.types.api.ComplexType;
+
+/**
+ * Optimizes an analyzed operation tree, this is meant to be run once after the {@link be.nabu.libs.evaluator.PathAnalyzer} is done:
+ * - classic operations that only consist of constants (e.g. "1 + 2" or "!true") are calculated once, they are not replaced in the tree but remember their value
+ * - the tree is compiled for the context type (see {@link TypeOperationCompiler}), this makes sure "and" and "or" always short circuit and evaluates their cheapest operands first
+ * The optimized operation can still be evaluated against other context types, those simply use the regular evaluation.
+ */
+public class TypeOperationOptimizer {
+
+	public static TypeOperation optimize(TypeOperation operation, ComplexType context) {
+		fold(operation);
+		return TypeOperationCompiler.compile(operation, context);
+	}
+	
+	/**
+	 * Folds bottom up so nested constants are known by the time their parent is checked
+	 */
+	private static void fold(Operation<?> operation) {
+		for (QueryPart part : operation.getParts()) {
+			if (part.getType() == QueryPart.Type.OPERATION && part.getContent() instanceof Operation) {
+				fold((Operation<?>) part.getContent());
+			}
+		}
+		if (operation instanceof TypeClassicOperation) {
+			((TypeClassicOperation) operation).fold();
+		}
+	}
+}
@@ -0,0 +1,82 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.evaluator.types.operations;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import be.nabu.libs.property.api.Value;
+import be.nabu.libs.types.api.CollectionHandlerProvider;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.api.Type;
+
+/**
+ * The outcome of typing an operation against a given context type.
+ * It is immutable so it can be shared between threads once it is calculated.
+ */
+public final class TypeResolution {
+
+	private final Type type;
+	private final CollectionHandlerProvider<?, ?> collectionHandler;
+	private final Value<?>[] properties;
+	private final Set<ComplexType> dependencies;
+
+	public TypeResolution(Type type, CollectionHandlerProvider<?, ?> collectionHandler, Value<?>[] properties) {
+		this(type, collectionHandler, properties, Collections.<ComplexType>emptySet());
+	}
+	
+	TypeResolution(Type type, CollectionHandlerProvider<?, ?> collectionHandler, Value<?>[] properties, Set<ComplexType> dependencies) {
+		this.type = type;
+		this.collectionHandler = collectionHandler;
+		this.properties = properties;
+		this.dependencies = dependencies;
+	}
+	
+	TypeResolution withDependencies(Set<ComplexType> dependencies) {
+		Set<ComplexType> copy = Collections.newSetFromMap(new IdentityHashMap<ComplexType, Boolean>());
+		copy.addAll(dependencies);
+		return new TypeResolution(type, collectionHandler, properties, Collections.unmodifiableSet(copy));
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * The collection handler for the return value, this is null if the result is not a collection
+	 */
+	public CollectionHandlerProvider<?, ?> getCollectionHandler() {
+		return collectionHandler;
+	}
+
+	/**
+	 * The properties of the element that is returned, note that this array is shared and should not be modified
+	 */
+	public Value<?>[] getProperties() {
+		return properties;
+	}
+	
+	/**
+	 * The types that were looked into to get to this resolution, they are recorded again every time the cached resolution is used
+	 */
+	public Set<ComplexType> getDependencies() {
+		return dependencies;
+	}
+
+}
@@ -18,12 +18,17 @@
 package be.nabu.libs.evaluator.types.operations;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
-import java.util.Stack;
+import java.util.stream.Stream;
 
 import be.nabu.libs.evaluator.api.Operation;
 import be.nabu.libs.evaluator.impl.VariableOperation;
+import be.nabu.libs.evaluator.types.api.EvaluationListener;
+import be.nabu.libs.evaluator.types.accessors.JavaBeanAccessor;
 import be.nabu.libs.evaluator.types.api.TypeOperation;
+import be.nabu.libs.evaluator.types.api.TypingContext;
 import be.nabu.libs.property.ValueUtils;
 import be.nabu.libs.property.api.Value;
 import be.nabu.libs.types.api.CollectionHandlerProvider;
@@ -56,156 +61,589 @@ import be.nabu.libs.evaluator.QueryPart;
  */
 public class TypeVariableOperation extends VariableOperation<ComplexContent> implements TypeOperation {
 
+	private static final JavaBeanAccessor BEAN_ACCESSOR = new JavaBeanAccessor();
+	
+	/**
+	 * The typing information per context type
+	 */
+	private final TypeCache<TypeResolution> resolutions = new TypeCache<TypeResolution>();
+	
+	/**
+	 * The compiled accessor chains per context type, paths that can not be compiled are marked with a placeholder
+	 */
+	private static final CompiledPath NOT_COMPILABLE = new CompiledPath(null, new String[0], new Element<?>[0]);
+	private final TypeCache<CompiledPath> compiled = new TypeCache<CompiledPath>();
+	
+	/**
+	 * Filters on lists of at least this size are evaluated in parallel, 0 disables it
+	 */
+	private int parallelFilterThreshold;
+	private static final ParallelFilter NOT_PARALLEL = new ParallelFilter(null, null, null);
+	private final TypeCache<ParallelFilter> parallelFilters = new TypeCache<ParallelFilter>();
+	
 	/**
-	 * The collection handler for the return parameter
+	 * Whether the evaluation runs in its own scope, this only depends on the parts so it is determined once
 	 */
-	private CollectionHandlerProvider<?, ?> collectionHandler;
-	private Value<?>[] properties;
+	private volatile Boolean scoped;
+	
+	/**
+	 * The lazy evaluation plans per context type
+	 */
+	private static final PathStream NOT_STREAMABLE = new PathStream(null, null, null, null);
+	private final TypeCache<PathStream> streams = new TypeCache<PathStream>();
+	
+	@Override
+	public Object evaluate(ComplexContent context) throws EvaluationException {
+		EvaluationListener listener = EvaluationListenerFactory.getInstance().getListener();
+		return listener == null ? evaluateUnobserved(context) : EvaluationListenerFactory.observe(listener, this, context, this::evaluateUnobserved);
+	}
+	
+	/**
+	 * Evaluating a subquery visits every item of the list, if that is side effect free it is done within one {@link EvaluationScope}
+	 */
+	private Object evaluateUnobserved(ComplexContent context) throws EvaluationException {
+		EvaluationScope scope = isScoped() ? EvaluationScope.open() : null;
+		try {
+			return evaluateInScope(context);
+		}
+		finally {
+			if (scope != null) {
+				scope.close();
+			}
+		}
+	}
+	
+	private boolean isScoped() {
+		Boolean scoped = this.scoped;
+		if (scoped == null) {
+			boolean filters = false;
+			for (QueryPart part : getParts()) {
+				filters |= part.getType() == QueryPart.Type.OPERATION;
+			}
+			scoped = filters && TypeOperationCompiler.isSideEffectFree(this);
+			this.scoped = scoped;
+		}
+		return scoped;
+	}
+	
+	private Object evaluateInScope(ComplexContent context) throws EvaluationException {
+		if (context != null && parallelFilterThreshold > 0) {
+			ParallelFilter filter = getParallelFilter(context.getType());
+			if (filter != null) {
+				Object list = context.get(filter.getName());
+				if (list instanceof List && ((List<?>) list).size() >= parallelFilterThreshold) {
+					List<?> result = filter.filter((List<?>) list);
+					if (result != null) {
+						return result;
+					}
+				}
+			}
+		}
+		if (context != null) {
+			CompiledPath path = getCompiledPath(context.getType());
+			if (path != null) {
+				Object result = path.evaluate(context);
+				if (result != CompiledPath.UNRESOLVED) {
+					return result;
+				}
+			}
+		}
+		return super.evaluate(context);
+	}
+	
+	private CompiledPath getCompiledPath(ComplexType type) {
+		CompiledPath path = compiled.get(type, null, 0);
+		if (path == null) {
+			path = compile(type);
+			compiled.put(type, null, 0, path == null ? NOT_COMPILABLE : path);
+		}
+		return path == NOT_COMPILABLE ? null : path;
+	}
+	
+	private ParallelFilter getParallelFilter(ComplexType type) {
+		ParallelFilter filter = parallelFilters.get(type, null, 0);
+		if (filter == null) {
+			filter = newParallelFilter(type);
+			parallelFilters.put(type, null, 0, filter == null ? NOT_PARALLEL : filter);
+		}
+		return filter == NOT_PARALLEL ? null : filter;
+	}
+	
+	/**
+	 * A filter can be run in parallel if it is the first step in a valid path, the predicate is a side effect free boolean that only depends on the item and any path after it can be compiled.
+	 */
+	@SuppressWarnings("unchecked")
+	private ParallelFilter newParallelFilter(ComplexType type) {
+		if (type == null || getParts().size() < 2 || getParts().get(0).getType() != QueryPart.Type.VARIABLE || getParts().get(1).getType() != QueryPart.Type.OPERATION) {
+			return null;
+		}
+		String name = getParts().get(0).getContent().toString();
+		if (name.startsWith("/") || "$this".equals(name) || (type instanceof BeanType && ((BeanType<?>) type).getBeanClass().equals(Object.class))) {
+			return null;
+		}
+		Element<?> element = type.get(name);
+		if (element == null || !(element.getType() instanceof ComplexType) || !element.getType().isList(element.getProperties())) {
+			return null;
+		}
+		Operation<ComplexContent> predicate = (Operation<ComplexContent>) getParts().get(1).getContent();
+		if (!TypeOperationCompiler.isSideEffectFree(predicate) || !TypeOperationCompiler.isItemLocal(predicate) || !validate(type).isEmpty()) {
+			return null;
+		}
+		Type predicateType = ((TypeOperation) predicate).getReturnType((ComplexType) element.getType());
+		if (!(predicateType instanceof SimpleType) || !Boolean.class.isAssignableFrom(((SimpleType<?>) predicateType).getInstanceClass())) {
+			return null;
+		}
+		CompiledPath remainder = null;
+		if (getParts().size() > 2) {
+			remainder = compile((ComplexType) element.getType(), 2);
+			if (remainder == null || !remainder.isSingleValued()) {
+				return null;
+			}
+		}
+		return new ParallelFilter(name, predicate, remainder);
+	}
+	
+	/**
+	 * Binds the path to the elements of the given type so it can be evaluated without any string handling.
+	 * Only plain paths with at most one list are compiled, anything that needs the full evaluation logic returns null:
+	 * - subqueries and indexes
+	 * - lists in lists
+	 * - absolute access and $this which depend on the evaluation stack
+	 * - elements that can not be found in the type (e.g. because it is an object)
+	 */
+	public CompiledPath compile(ComplexType type) {
+		return compile(type, 0);
+	}
+	
+	private CompiledPath compile(ComplexType type, int offset) {
+		if (type == null) {
+			return null;
+		}
+		String[] names = new String[getParts().size() - offset];
+		Element<?>[] elements = new Element<?>[names.length];
+		ComplexType current = type;
+		boolean list = false;
+		for (int i = 0; i < names.length; i++) {
+			if (getParts().get(offset + i).getType() != QueryPart.Type.VARIABLE || current == null) {
+				return null;
+			}
+			String path = getParts().get(offset + i).getContent().toString();
+			if (path.startsWith("/")) {
+				// absolute access
+				if (offset + i == 0) {
+					return null;
+				}
+				path = path.substring(1);
+			}
+			if ("$this".equals(path) || (current instanceof BeanType && ((BeanType<?>) current).getBeanClass().equals(Object.class))) {
+				return null;
+			}
+			Element<?> element = current.get(path);
+			// attributes are elements in the type
+			if (element == null && path.startsWith("@")) {
+				path = path.substring(1);
+				element = current.get(path);
+			}
+			if (element == null || (list && element.getType().isList(element.getProperties()))) {
+				return null;
+			}
+			list |= element.getType().isList(element.getProperties());
+			names[i] = path;
+			elements[i] = element;
+			current = element.getType() instanceof ComplexType ? (ComplexType) element.getType() : null;
+		}
+		return new CompiledPath(type, names, elements);
+	}
+	
+	/**
+	 * Returns the results of this path lazily, this allows consumers like anyMatch(), findFirst() or count() to run over large (nested) lists without the intermediate lists being built.
+	 * If the path can not be evaluated lazily (e.g. because a filter depends on more than the item it filters), the result of the regular evaluation is streamed instead.
+	 * Null values are never part of the stream.
+	 */
+	@SuppressWarnings("unchecked")
+	public Stream<Object> stream(ComplexContent context) throws EvaluationException {
+		PathStream stream = context == null ? null : getPathStream(context.getType());
+		if (stream != null) {
+			return stream.stream(context);
+		}
+		Object result = evaluate(context);
+		if (result == null) {
+			return Stream.empty();
+		}
+		else if (result instanceof Collection) {
+			return ((Collection<Object>) result).stream().filter(item -> item != null);
+		}
+		else if (result instanceof Object[]) {
+			return Arrays.stream((Object[]) result).filter(item -> item != null);
+		}
+		return Stream.of(result);
+	}
+	
+	private PathStream getPathStream(ComplexType type) {
+		PathStream stream = streams.get(type, null, 0);
+		if (stream == null) {
+			stream = newPathStream(type);
+			streams.put(type, null, 0, stream == null ? NOT_STREAMABLE : stream);
+		}
+		return stream == NOT_STREAMABLE ? null : stream;
+	}
+	
+	/**
+	 * A path can be streamed if it is valid, relative and every subquery is either a constant index or a side effect free filter that only depends on the item.
+	 */
+	@SuppressWarnings("unchecked")
+	private PathStream newPathStream(ComplexType type) {
+		if (type == null || !validate(type).isEmpty()) {
+			return null;
+		}
+		List<String> names = new ArrayList<String>();
+		List<Boolean> lists = new ArrayList<Boolean>();
+		List<Operation<ComplexContent>> filters = new ArrayList<Operation<ComplexContent>>();
+		List<Integer> indexes = new ArrayList<Integer>();
+		ComplexType current = type;
+		for (int i = 0; i < getParts().size(); i++) {
+			if (getParts().get(i).getType() == QueryPart.Type.VARIABLE) {
+				String path = getParts().get(i).getContent().toString();
+				if (path.startsWith("/")) {
+					if (i == 0) {
+						return null;
+					}
+					path = path.substring(1);
+				}
+				if (current == null || "$this".equals(path) || (current instanceof BeanType && ((BeanType<?>) current).getBeanClass().equals(Object.class))) {
+					return null;
+				}
+				Element<?> element = current.get(path);
+				if (element == null && path.startsWith("@")) {
+					path = path.substring(1);
+					element = current.get(path);
+				}
+				if (element == null) {
+					return null;
+				}
+				names.add(path);
+				lists.add(element.getType().isList(element.getProperties()));
+				filters.add(null);
+				indexes.add(-1);
+				current = element.getType() instanceof ComplexType ? (ComplexType) element.getType() : null;
+			}
+			else if (getParts().get(i).getType() == QueryPart.Type.OPERATION && i > 0 && lists.get(lists.size() - 1)) {
+				Operation<ComplexContent> operation = (Operation<ComplexContent>) getParts().get(i).getContent();
+				if (operation instanceof TypeNativeOperation) {
+					Object index;
+					try {
+						index = operation.evaluate(null);
+					}
+					catch (EvaluationException e) {
+						return null;
+					}
+					if (!ClassicCompiler.isIntegral(index) || ((Number) index).longValue() < 0 || ((Number) index).longValue() > Integer.MAX_VALUE) {
+						return null;
+					}
+					indexes.set(indexes.size() - 1, ((Number) index).intValue());
+				}
+				else {
+					if (current == null || !TypeOperationCompiler.isSideEffectFree(operation) || !TypeOperationCompiler.isItemLocal(operation)) {
+						return null;
+					}
+					Type returnType = ((TypeOperation) operation).getReturnType(current);
+					if (!(returnType instanceof SimpleType) || !Boolean.class.isAssignableFrom(((SimpleType<?>) returnType).getInstanceClass())) {
+						return null;
+					}
+					filters.set(filters.size() - 1, operation);
+				}
+			}
+			else {
+				return null;
+			}
+		}
+		boolean [] listArray = new boolean[lists.size()];
+		int [] indexArray = new int[indexes.size()];
+		for (int i = 0; i < listArray.length; i++) {
+			listArray[i] = lists.get(i);
+			indexArray[i] = indexes.get(i);
+		}
+		return new PathStream(names.toArray(new String[names.size()]), listArray, filters.toArray(new Operation[filters.size()]), indexArray);
+	}
 	
 	/**
 	 * This can be used to resolve a variable operation into an indexed path, e.g.
 	 * my/path[1]/to[20]/something
 	 */
 	public String resolve(ComplexContent context) throws EvaluationException {
+		return resolvePath(context).toString();
+	}
+	
+	/**
+	 * Appends the resolved path to the builder, this allows the caller to reuse a builder (or build a larger string) for many resolves
+	 */
+	public StringBuilder resolve(ComplexContent context, StringBuilder builder) throws EvaluationException {
+		return resolvePath(context).appendTo(builder);
+	}
+	
+	/**
+	 * Resolves the operation into a path of names and numeric indexes.
+	 * The path is walked once: beans along the way are accessed directly and only wrapped if an index has to be evaluated against them.
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public ResolvedPath resolvePath(ComplexContent context) throws EvaluationException {
 		getContextStack().add(context);
 		try {
-			return resolve(context, 0, true);
+			int size = getParts().size();
+			String[] names = new String[size];
+			int[] indexes = new int[size];
+			int steps = 0;
+			// the last known instance along the path, either a complex content or a bean
+			Object current = context;
+			// a bean is only wrapped to evaluate an index against it, the wrapper is reused as long as the instance does not change
+			Object wrapped = null;
+			ComplexContent wrapper = null;
+			// whether the previous resolved object existed, so basically it indicates up until where the context is updated to match the query
+			boolean exists = true;
+			int offset = 0;
+			while (true) {
+				String path = getParts().get(offset).getContent().toString();
+				// remove any leading "/"
+				if (path.startsWith("/"))
+					path = path.substring(1);
+				
+				// try best effort to get the object, if it is null, we use the current context
+				// this is because you can for example set "my/path[2]/variable[1]/value" while even the "path" variable does not exist
+				// this does limit the use of local variables in your expressions though!
+				// by ignoring "null" objects and passing the parent context we allow you to use it best effort instead of immediately throwing errors but it might exhibit odd behavior where e.g. "[myIndex]" may refer to another context than you think
+				Object object = exists ? get(current, path) : null;
+				names[steps] = path;
+				indexes[steps++] = -1;
+				
+				// if it's the last part, we are done
+				if (offset == size - 1) {
+					break;
+				}
+				// otherwise, we need to resolve the next element, it is either an operation (which MUST be numeric) or a variable
+				else if (getParts().get(offset + 1).getType() == QueryPart.Type.OPERATION) {
+					if (!(current instanceof ComplexContent) && current != wrapped) {
+						wrapper = new BeanInstance(current);
+						wrapped = current;
+					}
+					Object value = ((Operation) getParts().get(offset + 1).getContent()).evaluate(current instanceof ComplexContent ? (ComplexContent) current : wrapper);
+					if (!(value instanceof Number))
+						throw new EvaluationException("The part " + getParts().get(offset + 1) + " is not numeric, it resolves to: " + value);
+					Number index = (Number) value;
+					if (index.intValue() < 0)
+						throw new EvaluationException("Can not have an index below 0");
+					indexes[steps - 1] = index.intValue();
+					// if there is no part after the index, we are done
+					if (offset >= size - 2) {
+						break;
+					}
+					// the path you are referencing exists in the list, use it as a context
+					if (object != null && ((List<?>) object).size() > index.intValue()) {
+						object = ((List<?>) object).get(index.intValue());
+					}
+					// it does not exist, resolve with whatever context you have
+					else {
+						object = null;
+					}
+					// if there is a part after the index, resolve that, it must be a variable!
+					offset += 2;
+				}
+				else if (getParts().get(offset + 1).getType() == QueryPart.Type.VARIABLE) {
+					offset++;
+				}
+				else
+					throw new EvaluationException("Not expecting part " + getParts().get(offset + 1).getType() + " at this point");
+				exists = object != null;
+				if (exists) {
+					current = object;
+				}
+			}
+			return new ResolvedPath(steps == size ? names : Arrays.copyOf(names, steps), steps == size ? indexes : Arrays.copyOf(indexes, steps));
 		}
 		finally {
 			getContextStack().pop();
 		}
 	}
-
+	
 	/**
-	 * @param exists This parameter indicates whether the previous resolved object existed, so basically it indicates up until where the context is updated to match the query
+	 * Resolves the path against the context and writes the value at the end of it, missing intermediate instances are created along the way.
+	 * Unlike resolving the path and setting the resulting string, the path is only walked once and the target never has to parse the full path.
+	 * The same restrictions as for resolving apply: indexes must be numeric and are evaluated against the instance that holds the list.
 	 */
-	@SuppressWarnings({ "rawtypes", "unchecked" })
-	private String resolve(ComplexContent context, int offset, boolean exists) throws EvaluationException {
-		String path = getParts().get(offset).getContent().toString();
-		// remove any leading "/"
-		if (path.startsWith("/"))
-			path = path.substring(1);
-		
-		// try best effort to get the object, if it is null, we use the current context
-		// this is because you can for example set "my/path[2]/variable[1]/value" while even the "path" variable does not exist
-		// this does limit the use of local variables in your expressions though!
-		// by ignoring "null" objects and passing the parent context we allow you to use it best effort instead of immediately throwing errors but it might exhibit odd behavior where e.g. "[myIndex]" may refer to another context than you think
-		Object object = exists ? context.get(path) : null;
-		
-		// if it's the last part, just return as is
-		if (offset == getParts().size() - 1)
-			return path;
-		// otherwise, we need to resolve the next element, it is either an operation (which MUST be numeric) or a variable
-		else if (getParts().get(offset + 1).getType() == QueryPart.Type.OPERATION) {
-			Object value = ((Operation) getParts().get(offset + 1).getContent()).evaluate(context);
-			if (!(value instanceof Number))
-				throw new EvaluationException("The part " + getParts().get(offset + 1) + " is not numeric, it resolves to: " + value);
-			Number index = (Number) value;
-			if (index.intValue() < 0)
-				throw new EvaluationException("Can not have an index below 0");
-			path += "[" + index.intValue() + "]";
-			// if there is a part after the index, resolve that, it must be a variable!
-			if (offset < getParts().size() - 2) {
-				// the path you are referencing exists in the list, use it as a context
-				if (object != null && ((List<?>) object).size() > index.intValue()) {
-					object = ((List<?>) object).get(index.intValue());
-					path += "/" + resolve(object == null ? context : (object instanceof ComplexContent ? (ComplexContent) object : new BeanInstance(object)), offset + 2, object != null);
+	@SuppressWarnings({ "rawtypes" })
+	public void set(ComplexContent context, Object value) throws EvaluationException {
+		getContextStack().add(context);
+		try {
+			int size = getParts().size();
+			ComplexContent current = context;
+			int offset = 0;
+			while (true) {
+				String name = getParts().get(offset).getContent().toString();
+				if (name.startsWith("/"))
+					name = name.substring(1);
+				int index = -1;
+				if (offset < size - 1 && getParts().get(offset + 1).getType() == QueryPart.Type.OPERATION) {
+					Object indexValue = ((Operation) getParts().get(offset + 1).getContent()).evaluate(current);
+					if (!(indexValue instanceof Number))
+						throw new EvaluationException("The part " + getParts().get(offset + 1) + " is not numeric, it resolves to: " + indexValue);
+					index = ((Number) indexValue).intValue();
+					if (index < 0)
+						throw new EvaluationException("Can not have an index below 0");
 				}
-				// it does not exist, resolve with whatever context you have
-				else
-					path += "/" + resolve(context, offset + 2, false);
+				int next = offset + (index >= 0 ? 2 : 1);
+				String key = index >= 0 ? name + "[" + index + "]" : name;
+				if (next >= size) {
+					current.set(key, value);
+					return;
+				}
+				else if (getParts().get(next).getType() != QueryPart.Type.VARIABLE) {
+					throw new EvaluationException("Not expecting part " + getParts().get(next).getType() + " at this point");
+				}
+				Object child = current.get(name);
+				if (index >= 0) {
+					child = child instanceof List && ((List<?>) child).size() > index ? ((List<?>) child).get(index) : null;
+				}
+				if (child == null) {
+					Element<?> element = current.getType().get(name);
+					if (element == null || !(element.getType() instanceof ComplexType)) {
+						throw new EvaluationException("Can not create '" + name + "' in: " + current.getType());
+					}
+					ComplexContent created = ((ComplexType) element.getType()).newInstance();
+					current.set(key, created);
+					// the target may convert what is set (e.g. a bean), continue with whatever it actually holds
+					child = current.get(key);
+					if (child == null) {
+						child = created;
+					}
+				}
+				current = child instanceof ComplexContent ? (ComplexContent) child : new BeanInstance(child);
+				offset = next;
 			}
 		}
-		// simply append it to the string
-		else if (getParts().get(offset + 1).getType() == QueryPart.Type.VARIABLE)
-			path += "/" + resolve(object == null ? context : (object instanceof ComplexContent ? (ComplexContent) object : new BeanInstance(object)), offset + 1, object != null);
-		else
-			throw new EvaluationException("Not expecting part " + getParts().get(offset + 1).getType() + " at this point");
-		return path;
+		finally {
+			getContextStack().pop();
+		}
+	}
+	
+	private static Object get(Object instance, String name) throws EvaluationException {
+		return instance instanceof ComplexContent ? ((ComplexContent) instance).get(name) : BEAN_ACCESSOR.get(instance, name);
 	}
 	
 	@Override
 	public Type getReturnType(ComplexType context) {
 		return getReturnType(context, false);
 	}
+	
+	@Override
+	public Type getReturnType(ComplexType context, TypingContext typing) {
+		return getResolution(context, false, typing).getType();
+	}
 	/**
 	 * For calculating the return type we simply need to return the type of the last field in the variable
 	 * If the last variable has an index and it is a numeric return type, we can leave the maxOccurs, otherwise we will have to make a list out of it
 	 */
 	public Type getReturnType(ComplexType context, boolean allowRuntimeAccess) {
-		if (contextStack.get() == null) {
-			contextStack.set(new Stack<ComplexType>());
-		}
-		boolean pushed = false;
-		if (contextStack.get().isEmpty()) {
-			pushed = true;
-			contextStack.get().push(context);
-		}
-		try {
-			Type returnType = getReturnType(context, 0, allowRuntimeAccess);
-			return returnType;
-		}
-		finally {
-			if (pushed) {
-				contextStack.get().pop();
+		return getResolution(context, allowRuntimeAccess).getType();
+	}
+	
+	public TypeResolution getResolution(ComplexType context) {
+		return getResolution(context, false);
+	}
+	
+	/**
+	 * The resolution only depends on the context type and the root that absolute paths are resolved against, so it is calculated once per combination.
+	 * Because the result is immutable, the same operation can be typed and evaluated by multiple threads at once.
+	 */
+	public TypeResolution getResolution(ComplexType context, boolean allowRuntimeAccess) {
+		return getResolution(context, allowRuntimeAccess, new TypingContext());
+	}
+	
+	public TypeResolution getResolution(ComplexType context, boolean allowRuntimeAccess, TypingContext typing) {
+		ComplexType root = typing.isEmpty() ? context : typing.getRoot();
+		ComplexType runtimeRoot = allowRuntimeAccess && VariableOperation.getCurrentRootContext() instanceof ComplexContent
+			? ((ComplexContent) VariableOperation.getCurrentRootContext()).getType()
+			: null;
+		TypeResolution resolution = runtimeRoot == null ? resolutions.get(context, root, 0) : resolutions.get(context, runtimeRoot, 1);
+		EvaluationListenerFactory.cacheAccessed("resolution", resolution != null);
+		if (resolution == null) {
+			if (runtimeRoot != null) {
+				EvaluationListenerFactory.resolvedAtRuntime(this, runtimeRoot);
+			}
+			// the resolution is typed in its own copy of the typing context so we know exactly which types it depends on
+			TypingContext resolving = typing.copy();
+			if (resolving.isEmpty()) {
+				resolving.push(context);
+			}
+			resolution = getResolution(context, 0, allowRuntimeAccess, null, resolving).withDependencies(resolving.getDependencies());
+			if (runtimeRoot == null) {
+				resolutions.put(context, root, 0, resolution);
 			}
+			else {
+				resolutions.put(context, runtimeRoot, 1, resolution);
+			}
+		}
+		for (ComplexType dependency : resolution.getDependencies()) {
+			typing.addDependency(dependency);
 		}
+		return resolution;
 	}
 	
 	// @2025-07-29: we have a filter on a list of structures. that filter contains a double comparison based on one field _in_ the structure and one field on the parent pipeline.
 	// however, the definition context stack does NOT contain the full context, in other words it does not contain the pipeline parent, this makes it impossible to resolve that field
 	// to determine the epsilon we need the properties of that element though
 	// so I've added the ability to check the runtime context (which _does_ contain the parent pipeline instance) and base the typing information on that when accessing the root with an absolute path
-	private Type getReturnType(ComplexType context, int offset, boolean allowRuntimeAccess) {
+	private TypeResolution getResolution(ComplexType context, int offset, boolean allowRuntimeAccess, CollectionHandlerProvider<?, ?> collectionHandler, TypingContext typing) {
 		String path = getParts().get(offset).getContent().toString();
 		Element<?> item;
 		// if it starts with a "/", we could be looking at an absolute root access (in a subquery) or simply the leading "/" for a path at the root
 		if (path.startsWith("/")) {
+			ComplexType parent;
 			if (allowRuntimeAccess && VariableOperation.getCurrentRootContext() instanceof ComplexContent) {
-				item = ((ComplexContent) VariableOperation.getCurrentRootContext()).getType().get(path.substring(1));
+				parent = ((ComplexContent) VariableOperation.getCurrentRootContext()).getType();
 			}
 			else {
-				item = offset == 0 ? contextStack.get().get(0).get(path.substring(1)) : context.get(path.substring(1));
+				parent = offset == 0 ? typing.getRoot() : context;
 			}
+			typing.addDependency(parent);
+			item = parent.get(path.substring(1));
 		}
 		else {
+			typing.addDependency(context);
 			item = context.get(path);
 			if (item == null && path.startsWith("@")) {
 				item = context.get(path.substring(1));
 			}
 		}
 		if (item == null) {
-			throw new IllegalArgumentException("Can not find '" + path + "' in: " + (offset == 0 && path.startsWith("/") ? contextStack.get().get(0) : context) + " (offset=" + offset + ")");
+			throw new IllegalArgumentException("Can not find '" + path + "' in: " + (offset == 0 && path.startsWith("/") ? typing.getRoot() : context) + " (offset=" + offset + ")");
 		}
 		// if it's the last item in the list, return it
 		if (offset == getParts().size() - 1) {
-			CollectionHandlerProvider<?, ?> collectionHandler = ValueUtils.getValue(CollectionHandlerProviderProperty.getInstance(), item.getProperties());
-			if (collectionHandler != null) {
-				this.collectionHandler = collectionHandler;
+			CollectionHandlerProvider<?, ?> itemCollectionHandler = ValueUtils.getValue(CollectionHandlerProviderProperty.getInstance(), item.getProperties());
+			if (itemCollectionHandler != null) {
+				collectionHandler = itemCollectionHandler;
 			}
-			else if (item.getType().isList(item.getProperties()) && this.collectionHandler == null) {
-				this.collectionHandler = new ListCollectionHandlerProvider();
+			else if (item.getType().isList(item.getProperties()) && collectionHandler == null) {
+				collectionHandler = new ListCollectionHandlerProvider();
 			}
-			properties = item.getProperties();
-			return item.getType();
+			return new TypeResolution(item.getType(), collectionHandler, item.getProperties());
 		}
 		// if it's an operation we need to check which one: index leaves the list variable alone, boolean makes it a list
 		if (getParts().get(offset + 1).getType() == QueryPart.Type.OPERATION) {
-			Type returnType = ((TypeOperation) getParts().get(offset + 1).getContent()).getReturnType(context);
+			Type returnType = ((TypeOperation) getParts().get(offset + 1).getContent()).getReturnType(context, typing);
 			if (returnType instanceof SimpleType && Boolean.class.isAssignableFrom(((SimpleType<?>) returnType).getInstanceClass())) {
-				this.collectionHandler = new ListCollectionHandlerProvider();
+				collectionHandler = new ListCollectionHandlerProvider();
 			}
 			// jump past index
 			offset++;
 		}
 		// if the item is a list and it is not followed by an operation, the result will automatically become a list as well
 		else if (item.getType().isList(item.getProperties())) {
-			CollectionHandlerProvider<?, ?> collectionHandler = ValueUtils.getValue(CollectionHandlerProviderProperty.getInstance(), item.getProperties());
-			if (collectionHandler != null) {
-				this.collectionHandler = collectionHandler;
+			CollectionHandlerProvider<?, ?> itemCollectionHandler = ValueUtils.getValue(CollectionHandlerProviderProperty.getInstance(), item.getProperties());
+			if (itemCollectionHandler != null) {
+				collectionHandler = itemCollectionHandler;
 			}
-			else if (this.collectionHandler == null) {
-				this.collectionHandler = new ListCollectionHandlerProvider();
+			else if (collectionHandler == null) {
+				collectionHandler = new ListCollectionHandlerProvider();
 			}
 		}
 		// if the index was the last one, return it
@@ -220,47 +658,69 @@ public class TypeVariableOperation extends VariableOperation<ComplexContent> imp
 //			else if (item.getType().isList(item.getProperties()) && this.collectionHandler == null) {
 //				this.collectionHandler = new ListCollectionHandlerProvider();
 //			}
-			properties = item.getProperties();
-			return item.getType();
+			return new TypeResolution(item.getType(), collectionHandler, item.getProperties());
 		}
 		else {
-			return getReturnType((ComplexType) item.getType(), offset + 1, allowRuntimeAccess);
+			return getResolution((ComplexType) item.getType(), offset + 1, allowRuntimeAccess, collectionHandler, typing);
 		}
 	}
 	
 	@Override
 	public CollectionHandlerProvider<?, ?> getReturnCollectionHandler(ComplexType context) {
-		getReturnType(context);
-		return collectionHandler;
+		return getResolution(context).getCollectionHandler();
+	}
+	
+	@Override
+	public CollectionHandlerProvider<?, ?> getReturnCollectionHandler(ComplexType context, TypingContext typing) {
+		return getResolution(context, false, typing).getCollectionHandler();
 	}
 	
 	@Override
 	public Value<?>[] getReturnProperties(ComplexType context) {
-		getReturnType(context);
-//		System.out.println("Getting variable properties: " + properties);
-		return properties;
+		return getResolution(context).getProperties();
+	}
+	
+	@Override
+	public Value<?>[] getReturnProperties(ComplexType context, TypingContext typing) {
+		return getResolution(context, false, typing).getProperties();
 	}
 	
 	public Value<?> [] getReturnProperties(ComplexType context, boolean allowRuntimeAccess) {
-		getReturnType(context, allowRuntimeAccess);
-		return properties;
+		return getResolution(context, allowRuntimeAccess).getProperties();
+	}
+	
+	@Override
+	public void invalidate() {
+		resolutions.clear();
+		compiled.clear();
+		parallelFilters.clear();
+		streams.clear();
+		TypeOperationCompiler.invalidateChildren(this);
 	}
 
-	private static ThreadLocal<Stack<ComplexType>> contextStack = new ThreadLocal<Stack<ComplexType>>();
+	public int getParallelFilterThreshold() {
+		return parallelFilterThreshold;
+	}
 	
+	public void setParallelFilterThreshold(int parallelFilterThreshold) {
+		this.parallelFilterThreshold = parallelFilterThreshold;
+	}
+
 	@Override
 	public List<Validation<?>> validate(ComplexType context) {
-		if (contextStack.get() == null) {
-			contextStack.set(new Stack<ComplexType>());
-		}
+		return validate(context, new TypingContext());
+	}
+	
+	@Override
+	public List<Validation<?>> validate(ComplexType context, TypingContext typing) {
 		int pushes = 0;
 		try {
 			// whether or not we are evaluating against the root of this operation
 			// if at the root, the usage of "/" is taken literally (e.g. for query operations that refer to the general root)
 			// if not at the root, the usage of "/" is taken as a variable separator
 			boolean isRootAccess = true;
-			if (contextStack.get().isEmpty()) {
-				contextStack.get().push(context);
+			if (typing.isEmpty()) {
+				typing.push(context);
 				pushes++;
 			}
 			List<Validation<?>> messages = new ArrayList<Validation<?>>();
@@ -274,25 +734,28 @@ public class TypeVariableOperation extends VariableOperation<ComplexContent> imp
 				Element<?> childContext;
 				if (path.startsWith("/")) {
 					if (isRootAccess) {
-						childContext = contextStack.get().get(0).get(path.substring(1));
+						typing.addDependency(typing.getRoot());
+						childContext = typing.getRoot().get(path.substring(1));
 					}
 					else {
+						typing.addDependency(context);
 						childContext = context.get(path.substring(1));	
 					}
 				}
 				else if ("$this".equals(path)) {
-					if (contextStack.get().isEmpty()) {
+					if (typing.isEmpty()) {
 						messages.add(new ValidationMessage(Severity.ERROR, "Can not use the $this reference without a valid context"));
 						break;	
 					}
 					// a single instance of the current one
-					childContext = new ComplexElementImpl("$this", contextStack.get().peek(), null);
+					childContext = new ComplexElementImpl("$this", typing.getCurrent(), null);
 				}
 				else {
 					// stop before because the next step will throw an exception if we try it on a beantype
 					if (context instanceof BeanType && ((BeanType<?>) context).getBeanClass().equals(Object.class)) {
 						break;
 					}
+					typing.addDependency(context);
 					childContext = context.get(path);
 					// if we can't find the context and its an attribute, it might be modelled as just an element
 					if (childContext == null && path.startsWith("@")) {
@@ -310,7 +773,7 @@ public class TypeVariableOperation extends VariableOperation<ComplexContent> imp
 				if (i < getParts().size() - 1) {
 					if (childContext.getType() instanceof ComplexType) {
 						context = (ComplexType) childContext.getType();
-						contextStack.get().push(context);
+						typing.push(context);
 						pushes++;
 						isRootAccess = false;
 					}
@@ -320,7 +783,7 @@ public class TypeVariableOperation extends VariableOperation<ComplexContent> imp
 						if (!childContext.getType().isList(childContext.getProperties())) {
 							messages.add(new ValidationMessage(Severity.ERROR, "The element " + childContext.getName() + " is not a collection, the subquery can not be run on it"));
 						}
-						messages.addAll(((TypeOperation) getParts().get(++i).getContent()).validate(context));
+						messages.addAll(((TypeOperation) getParts().get(++i).getContent()).validate(context, typing));
 					}
 					// even after any possible list validation, there is still part of the query left
 					if (!(childContext.getType() instanceof ComplexType) && i < getParts().size() - 1) {
@@ -333,7 +796,7 @@ public class TypeVariableOperation extends VariableOperation<ComplexContent> imp
 		}
 		finally {
 			for (int i = 0; i < pushes; i++) {
-				contextStack.get().pop();
+				typing.pop();
 			}
 		}
 	}
@@ -17,13 +17,48 @@
 
 package be.nabu.libs.evaluator.types.operations;
 
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import be.nabu.libs.evaluator.PathAnalyzer;
+import be.nabu.libs.evaluator.QueryParser;
 import be.nabu.libs.evaluator.api.Operation;
 import be.nabu.libs.evaluator.api.OperationProvider;
+import be.nabu.libs.evaluator.types.accessors.ComplexContentAccessor;
+import be.nabu.libs.evaluator.types.api.TypeOperation;
+import be.nabu.libs.evaluator.types.api.TypingContext;
 import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.validator.api.Validation;
 
 public class TypesOperationProvider implements OperationProvider<ComplexContent> {
 
 	private boolean allowOperatorOverloading;
+	/**
+	 * Filters on lists of at least this size are evaluated in parallel, this is disabled by default
+	 */
+	private int parallelFilterThreshold;
+	
+	/**
+	 * The analyzed operations per query, settings and context type, the least recently used ones are dropped once the maximum size is reached
+	 */
+	private volatile int maxCachedOperations = 1000;
+	private final Map<Key, CachedOperation> operations = Collections.synchronizedMap(new LinkedHashMap<Key, CachedOperation>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, CachedOperation> eldest) {
+			return size() > maxCachedOperations;
+		}
+	});
+	private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
 	
 	public TypesOperationProvider() {
 		this(true);
@@ -37,10 +72,165 @@ public class TypesOperationProvider implements OperationProvider<ComplexContent>
 		switch(type) {
 			case CLASSIC: return new TypeClassicOperation(allowOperatorOverloading);
 			case METHOD: return new TypeMethodOperation();
-			case VARIABLE: return new TypeVariableOperation();
+			case VARIABLE:
+				TypeVariableOperation operation = new TypeVariableOperation();
+				operation.setParallelFilterThreshold(parallelFilterThreshold);
+				return operation;
 			case NATIVE: return new TypeNativeOperation();
 		}
 		throw new RuntimeException("Unknown operation type: " + type);
 	}
+	
+	/**
+	 * Returns the operation for the query, it is only parsed and analyzed the first time.
+	 * If a context type is given, the operation is validated and compiled for it (see {@link TypeOperationCompiler}), use {@link #validate(String, ComplexType)} to get the outcome.
+	 * The returned operation is shared with every other caller that asks for the same query so it should not be modified.
+	 */
+	public TypeOperation getOperation(String query, ComplexType context) throws ParseException {
+		return getCachedOperation(query, context).operation;
+	}
+	
+	/**
+	 * Note that the returned list is shared and can not be modified
+	 */
+	public List<Validation<?>> validate(String query, ComplexType context) throws ParseException {
+		return getCachedOperation(query, context).validations;
+	}
+	
+	CachedOperation getCachedOperation(String query, ComplexType context) throws ParseException {
+		Key key = new Key(query, context, allowOperatorOverloading, parallelFilterThreshold);
+		CachedOperation cached = operations.get(key);
+		EvaluationListenerFactory.cacheAccessed("operation", cached != null);
+		if (cached != null) {
+			hits.incrementAndGet();
+			return cached;
+		}
+		misses.incrementAndGet();
+		// we analyze outside of the lock, if two threads analyze the same query at the same time, they end up with equivalent operations
+		TypeOperation operation = (TypeOperation) new PathAnalyzer<ComplexContent>(this).analyze(QueryParser.getInstance().parse(query));
+		List<Validation<?>> validations = Collections.emptyList();
+		Set<ComplexType> dependencies = Collections.newSetFromMap(new IdentityHashMap<ComplexType, Boolean>());
+		if (context != null) {
+			TypingContext typing = new TypingContext();
+			validations = Collections.unmodifiableList(new ArrayList<Validation<?>>(ValidationCache.validate(operation, context, typing, EvaluationListenerFactory.getInstance().getListener())));
+			dependencies.add(context);
+			dependencies.addAll(typing.getDependencies());
+			if (validations.isEmpty()) {
+				TypeOperationCompiler.compile(operation, context);
+			}
+		}
+		cached = new CachedOperation(operation, validations, dependencies);
+		operations.put(key, cached);
+		return cached;
+	}
+	
+	public long getCacheHits() {
+		return hits.get();
+	}
+	
+	public long getCacheMisses() {
+		return misses.get();
+	}
+	
+	public int getCacheSize() {
+		return operations.size();
+	}
+	
+	public void clearCache() {
+		operations.clear();
+	}
+	
+	/**
+	 * Drops the operations whose validation depended on the given type and clears the typing information cached in them, use this when the type definition changes.
+	 * This includes operations that were validated against another type but looked into this one, e.g. because it is the type of a child.
+	 */
+	public void invalidate(ComplexType context) {
+		List<TypeOperation> affected = new ArrayList<TypeOperation>();
+		synchronized(operations) {
+			Iterator<CachedOperation> iterator = operations.values().iterator();
+			while (iterator.hasNext()) {
+				CachedOperation cached = iterator.next();
+				if (cached.dependencies.contains(context)) {
+					affected.add(cached.operation);
+					iterator.remove();
+				}
+			}
+		}
+		for (TypeOperation operation : affected) {
+			operation.invalidate();
+		}
+		ComplexContentAccessor.invalidate(context);
+	}
+	
+	/**
+	 * A new provider with the same settings but an operation cache of its own
+	 */
+	TypesOperationProvider copy() {
+		TypesOperationProvider copy = new TypesOperationProvider(allowOperatorOverloading);
+		copy.parallelFilterThreshold = parallelFilterThreshold;
+		copy.maxCachedOperations = maxCachedOperations;
+		return copy;
+	}
+	
+	public int getMaxCachedOperations() {
+		return maxCachedOperations;
+	}
+	
+	public void setMaxCachedOperations(int maxCachedOperations) {
+		this.maxCachedOperations = maxCachedOperations;
+	}
+	
+	public int getParallelFilterThreshold() {
+		return parallelFilterThreshold;
+	}
+	
+	public void setParallelFilterThreshold(int parallelFilterThreshold) {
+		this.parallelFilterThreshold = parallelFilterThreshold;
+	}
+	
+	static class CachedOperation {
+		final TypeOperation operation;
+		final List<Validation<?>> validations;
+		/**
+		 * The types the validation looked into, matched on identity
+		 */
+		final Set<ComplexType> dependencies;
+		
+		CachedOperation(TypeOperation operation, List<Validation<?>> validations, Set<ComplexType> dependencies) {
+			this.operation = operation;
+			this.validations = validations;
+			this.dependencies = dependencies;
+		}
+	}
+	
+	/**
+	 * The context type is matched on identity, like in the other caches
+	 */
+	private static class Key {
+		private final String query;
+		private final ComplexType context;
+		private final boolean allowOperatorOverloading;
+		private final int parallelFilterThreshold;
+		
+		Key(String query, ComplexType context, boolean allowOperatorOverloading, int parallelFilterThreshold) {
+			this.query = query;
+			this.context = context;
+			this.allowOperatorOverloading = allowOperatorOverloading;
+			this.parallelFilterThreshold = parallelFilterThreshold;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * (31 * query.hashCode() + System.identityHashCode(context)) + (allowOperatorOverloading ? 1 : 0) + 3 * parallelFilterThreshold;
+		}
 
+		@Override
+		public boolean equals(Object object) {
+			if (!(object instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) object;
+			return other.context == context && other.allowOperatorOverloading == allowOperatorOverloading && other.parallelFilterThreshold == parallelFilterThreshold && other.query.equals(query);
+		}
+	}
 }
@@ -0,0 +1,212 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.evaluator.types.operations;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import be.nabu.libs.evaluator.types.accessors.ComplexContentAccessor;
+import be.nabu.libs.evaluator.types.api.EvaluationListener;
+import be.nabu.libs.evaluator.types.api.TypeOperation;
+import be.nabu.libs.evaluator.types.api.TypingContext;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.api.Type;
+import be.nabu.libs.validator.api.Validation;
+
+/**
+ * Caches the validation result and return type of an operation for a given type.
+ * Both the operation and the type are matched on identity, the least recently used entries are dropped once the maximum size is reached.
+ * The cache can not detect changes to a type definition, use {@link #invalidate(ComplexType)} when that happens.
+ */
+public class ValidationCache {
+
+	private final Map<Key, CachedValidation> entries;
+	
+	public ValidationCache() {
+		this(1000);
+	}
+	
+	public ValidationCache(final int maxSize) {
+		this.entries = Collections.synchronizedMap(new LinkedHashMap<Key, CachedValidation>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, CachedValidation> eldest) {
+				return size() > maxSize;
+			}
+		});
+	}
+	
+	/**
+	 * Note that the returned list is shared and can not be modified
+	 */
+	public List<Validation<?>> validate(TypeOperation operation, ComplexType type) {
+		return getEntry(operation, type).validations;
+	}
+	
+	public Type getReturnType(TypeOperation operation, ComplexType type) {
+		CachedValidation entry = getEntry(operation, type);
+		// only resolved when asked, most callers only care about the validation
+		if (entry.returnType == null) {
+			entry.returnType = operation.getReturnType(type);
+		}
+		return entry.returnType;
+	}
+	
+	private CachedValidation getEntry(TypeOperation operation, ComplexType type) {
+		Key key = new Key(operation, type);
+		CachedValidation entry = entries.get(key);
+		EvaluationListenerFactory.cacheAccessed("validation", entry != null);
+		// we validate outside of the lock, if two threads validate the same thing at the same time, the result is the same
+		if (entry == null) {
+			TypingContext typing = new TypingContext();
+			List<Validation<?>> validations = validate(operation, type, typing, EvaluationListenerFactory.getInstance().getListener());
+			Set<ComplexType> dependencies = Collections.newSetFromMap(new IdentityHashMap<ComplexType, Boolean>());
+			dependencies.add(type);
+			dependencies.addAll(typing.getDependencies());
+			entry = new CachedValidation(Collections.unmodifiableList(new ArrayList<Validation<?>>(validations)), dependencies);
+			entries.put(key, entry);
+		}
+		return entry;
+	}
+	
+	/**
+	 * Removes everything whose validation depended on the given type and clears the typing information cached in those operations.
+	 * This includes operations that were validated against another type but looked into this one, e.g. because it is the type of a child.
+	 * Operations that never touched the type are left alone.
+	 */
+	public void invalidate(ComplexType type) {
+		invalidateAffected(type);
+	}
+	
+	/**
+	 * Invalidates like {@link #invalidate(ComplexType)} and validates the affected operations again against the types they were validated for.
+	 * The new results are cached again so the affected entries are immediately available (with their new dependencies), the size of the cache does not change.
+	 * The operations that are no longer valid are returned with their messages.
+	 */
+	public Map<TypeOperation, List<Validation<?>>> revalidate(ComplexType type) {
+		Map<TypeOperation, List<Validation<?>>> invalid = new IdentityHashMap<TypeOperation, List<Validation<?>>>();
+		for (Key key : invalidateAffected(type)) {
+			List<Validation<?>> validations = validate(key.operation, key.type);
+			if (!validations.isEmpty()) {
+				List<Validation<?>> current = invalid.get(key.operation);
+				if (current == null) {
+					invalid.put(key.operation, validations);
+				}
+				else {
+					current = new ArrayList<Validation<?>>(current);
+					current.addAll(validations);
+					invalid.put(key.operation, current);
+				}
+			}
+		}
+		return invalid;
+	}
+	
+	private List<Key> invalidateAffected(ComplexType type) {
+		List<Key> affected = new ArrayList<Key>();
+		synchronized(entries) {
+			Iterator<Map.Entry<Key, CachedValidation>> iterator = entries.entrySet().iterator();
+			while (iterator.hasNext()) {
+				Map.Entry<Key, CachedValidation> entry = iterator.next();
+				if (entry.getValue().dependencies.contains(type)) {
+					affected.add(entry.getKey());
+					iterator.remove();
+				}
+			}
+		}
+		for (Key key : affected) {
+			key.operation.invalidate();
+		}
+		ComplexContentAccessor.invalidate(type);
+		return affected;
+	}
+	
+	/**
+	 * Removes everything that was cached for the given operation
+	 */
+	public void invalidate(TypeOperation operation) {
+		synchronized(entries) {
+			Iterator<Key> iterator = entries.keySet().iterator();
+			while (iterator.hasNext()) {
+				if (iterator.next().operation == operation) {
+					iterator.remove();
+				}
+			}
+		}
+		operation.invalidate();
+	}
+	
+	public void clear() {
+		entries.clear();
+	}
+	
+	public int size() {
+		return entries.size();
+	}
+	
+	/**
+	 * Validates the operation and reports the time it took to the listener (if any)
+	 */
+	static List<Validation<?>> validate(TypeOperation operation, ComplexType type, TypingContext typing, EvaluationListener listener) {
+		if (listener == null) {
+			return operation.validate(type, typing);
+		}
+		long started = System.nanoTime();
+		List<Validation<?>> validations = operation.validate(type, typing);
+		listener.validated(operation, type, System.nanoTime() - started, validations.size());
+		return validations;
+	}
+	
+	private static class Key {
+		private final TypeOperation operation;
+		private final ComplexType type;
+		
+		Key(TypeOperation operation, ComplexType type) {
+			this.operation = operation;
+			this.type = type;
+		}
+		@Override
+		public boolean equals(Object object) {
+			return object instanceof Key && ((Key) object).operation == operation && ((Key) object).type == type;
+		}
+		@Override
+		public int hashCode() {
+			return 31 * System.identityHashCode(operation) + System.identityHashCode(type);
+		}
+	}
+	
+	private static class CachedValidation {
+		private final List<Validation<?>> validations;
+		/**
+		 * The types the validation looked into (including the type it was validated against)
+		 */
+		private final Set<ComplexType> dependencies;
+		private volatile Type returnType;
+		
+		CachedValidation(List<Validation<?>> validations, Set<ComplexType> dependencies) {
+			this.validations = validations;
+			this.dependencies = dependencies;
+		}
+	}
+}
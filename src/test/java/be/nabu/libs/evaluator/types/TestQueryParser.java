@@ -20,16 +20,35 @@ package be.nabu.libs.evaluator.types;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.stream.Collectors;
 
 import junit.framework.TestCase;
 import be.nabu.libs.evaluator.EvaluationException;
 import be.nabu.libs.evaluator.PathAnalyzer;
 import be.nabu.libs.evaluator.QueryParser;
+import be.nabu.libs.evaluator.QueryPart;
 import be.nabu.libs.evaluator.api.Operation;
+import be.nabu.libs.evaluator.types.accessors.ComplexContentAccessor;
+import be.nabu.libs.evaluator.types.accessors.JavaBeanAccessor;
+import be.nabu.libs.evaluator.types.api.EvaluationListener;
+import be.nabu.libs.evaluator.types.api.TypeOperation;
+import be.nabu.libs.evaluator.types.operations.BatchEvaluator;
+import be.nabu.libs.evaluator.types.operations.EvaluationListenerFactory;
+import be.nabu.libs.evaluator.types.operations.ResolvedPath;
+import be.nabu.libs.evaluator.types.operations.TypeClassicOperation;
+import be.nabu.libs.evaluator.types.operations.TypeOperationCompiler;
+import be.nabu.libs.evaluator.types.operations.TypeOperationOptimizer;
+import be.nabu.libs.evaluator.types.operations.TypeResolution;
+import be.nabu.libs.evaluator.types.operations.TypeVariableOperation;
 import be.nabu.libs.evaluator.types.operations.TypesOperationProvider;
 import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.ComplexType;
 import be.nabu.libs.types.java.BeanInstance;
+import be.nabu.libs.types.java.BeanType;
 
 public class TestQueryParser extends TestCase {
 	
@@ -83,6 +102,366 @@ public class TestQueryParser extends TestCase {
 		assertTrue((Boolean) operation.evaluate(complex));
 	}
 	
+	public void testCompiledPath() throws ParseException, EvaluationException {
+		PathAnalyzer<ComplexContent> pathAnalyzer = new PathAnalyzer<ComplexContent>(new TypesOperationProvider());
+		Test2 test2 = new Test2(new Test(5), 5.5);
+		ComplexContent complex = new BeanInstance<Test2>(test2);
+		
+		TypeVariableOperation operation = (TypeVariableOperation) pathAnalyzer.analyze(QueryParser.getInstance().parse("test/myInteger"));
+		assertNotNull(operation.compile(complex.getType()));
+		assertEquals(5, operation.evaluate(complex));
+		
+		// attributes are elements of the type
+		operation = (TypeVariableOperation) pathAnalyzer.analyze(QueryParser.getInstance().parse("test/@myInteger"));
+		assertEquals(2, operation.compile(complex.getType()).getElements().length);
+		assertEquals(5, operation.evaluate(complex));
+		
+		// the steps after a list are applied to every item
+		test2.getList().add(new Test(2));
+		test2.getList().add(new Test(3));
+		operation = (TypeVariableOperation) pathAnalyzer.analyze(QueryParser.getInstance().parse("list/myInteger"));
+		assertNotNull(operation.compile(complex.getType()));
+		assertEquals(Arrays.asList(new Integer[] { 2, 3 }), operation.evaluate(complex));
+		operation = (TypeVariableOperation) pathAnalyzer.analyze(QueryParser.getInstance().parse("list"));
+		assertNotNull(operation.compile(complex.getType()));
+		assertEquals(2, ((List<?>) operation.evaluate(complex)).size());
+		
+		// subqueries are left to the regular evaluation
+		operation = (TypeVariableOperation) pathAnalyzer.analyze(QueryParser.getInstance().parse("list[myInteger > 3]/myInteger"));
+		assertNull(operation.compile(complex.getType()));
+	}
+	
+	public void testCompiler() throws ParseException, EvaluationException {
+		PathAnalyzer<ComplexContent> pathAnalyzer = new PathAnalyzer<ComplexContent>(new TypesOperationProvider());
+		ComplexContent complex = new BeanInstance<Test2>(new Test2(new Test(5), 5.5));
+		
+		TypeOperation operation = TypeOperationCompiler.compile((TypeOperation) pathAnalyzer.analyze(QueryParser.getInstance().parse("test/myInteger > 3 && myDouble < 6")), complex.getType());
+		assertEquals(true, operation.evaluate(complex));
+		
+		operation = TypeOperationCompiler.compile((TypeOperation) pathAnalyzer.analyze(QueryParser.getInstance().parse("test/myInteger + 2 = 7 && (myDouble + test/myInteger)==10.5")), complex.getType());
+		assertEquals(true, operation.evaluate(complex));
+		
+		operation = TypeOperationCompiler.compile((TypeOperation) pathAnalyzer.analyze(QueryParser.getInstance().parse("myDouble >= 6 || test/myInteger != 5")), complex.getType());
+		assertEquals(false, operation.evaluate(complex));
+		
+		// the arithmetic is done in primitives but the result has the type of the left operand
+		operation = TypeOperationCompiler.compile((TypeOperation) pathAnalyzer.analyze(QueryParser.getInstance().parse("myDouble - (test/myInteger + 2)")), complex.getType());
+		assertEquals(-1.5, operation.evaluate(complex));
+		
+		operation = TypeOperationCompiler.compile((TypeOperation) pathAnalyzer.analyze(QueryParser.getInstance().parse("test/myInteger * 3 % 4")), complex.getType());
+		assertEquals(3, operation.evaluate(complex));
+		
+		// a double on the right is converted to the type of the left operand, like the regular evaluation does
+		operation = TypeOperationCompiler.compile((TypeOperation) pathAnalyzer.analyze(QueryParser.getInstance().parse("test/myInteger + 2 - myDouble")), complex.getType());
+		assertEquals(pathAnalyzer.analyze(QueryParser.getInstance().parse("test/myInteger + 2 - myDouble")).evaluate(complex), operation.evaluate(complex));
+		
+		// without falling back to the regular evaluation (which would read the double again)
+		Numbers numbers = new Numbers(5, 6, 7.0);
+		ComplexContent content = new BeanInstance<Numbers>(numbers);
+		operation = TypeOperationCompiler.compile((TypeOperation) pathAnalyzer.analyze(QueryParser.getInstance().parse("myInteger + 2 - myDouble")), content.getType());
+		assertEquals(0, operation.evaluate(content));
+		assertEquals(1, numbers.getReads());
+		operation = TypeOperationCompiler.compile((TypeOperation) pathAnalyzer.analyze(QueryParser.getInstance().parse("myLong * myDouble")), content.getType());
+		assertEquals(42l, operation.evaluate(content));
+		assertEquals(2, numbers.getReads());
+	}
+	
+	public void testBatch() throws ParseException, EvaluationException {
+		PathAnalyzer<ComplexContent> pathAnalyzer = new PathAnalyzer<ComplexContent>(new TypesOperationProvider());
+		List<ComplexContent> contexts = new ArrayList<ComplexContent>();
+		for (int i = 0; i < 6; i++) {
+			contexts.add(new BeanInstance<Test>(new Test(i)));
+		}
+		BatchEvaluator evaluator = new BatchEvaluator((TypeOperation) pathAnalyzer.analyze(QueryParser.getInstance().parse("myInteger > 3")));
+		BitSet matches = evaluator.filter(contexts);
+		assertEquals(2, matches.cardinality());
+		assertTrue(matches.get(4) && matches.get(5));
+		assertEquals(Arrays.asList(new Object[] { false, false, false, false, true, true }), Arrays.asList(evaluator.evaluate(contexts)));
+	}
+	
+	public void testBatchAlternatingTypes() throws ParseException, EvaluationException {
+		final List<String> misses = new ArrayList<String>();
+		EvaluationListenerFactory.getInstance().setListener(new EvaluationListener() {
+			@Override
+			public void cacheAccessed(String cache, boolean hit) {
+				if (!hit) {
+					misses.add(cache);
+				}
+			}
+		});
+		try {
+			PathAnalyzer<ComplexContent> pathAnalyzer = new PathAnalyzer<ComplexContent>(new TypesOperationProvider());
+			List<ComplexContent> contexts = new ArrayList<ComplexContent>();
+			for (int i = 0; i < 6; i++) {
+				contexts.add(new BeanInstance<Test>(new Test(i)));
+				contexts.add(new BeanInstance<Numbers>(new Numbers(i, i, i)));
+			}
+			BatchEvaluator evaluator = new BatchEvaluator((TypeOperation) pathAnalyzer.analyze(QueryParser.getInstance().parse("myInteger > 3")));
+			assertEquals(4, evaluator.filter(contexts).cardinality());
+			// every type is compiled once
+			assertEquals(2, Collections.frequency(misses, "compilation"));
+		}
+		finally {
+			EvaluationListenerFactory.getInstance().setListener(null);
+		}
+	}
+	
+	public void testParallelFilter() throws ParseException, EvaluationException {
+		TypesOperationProvider provider = new TypesOperationProvider();
+		provider.setParallelFilterThreshold(100);
+		Test2 test2 = new Test2(new Test(5), 5.5);
+		for (int i = 0; i < 1000; i++) {
+			test2.getList().add(new Test(i % 10));
+		}
+		ComplexContent complex = new BeanInstance<Test2>(test2);
+		Operation<ComplexContent> parallel = new PathAnalyzer<ComplexContent>(provider).analyze(QueryParser.getInstance().parse("list[myInteger > 3]/myInteger"));
+		Operation<ComplexContent> sequential = new PathAnalyzer<ComplexContent>(new TypesOperationProvider()).analyze(QueryParser.getInstance().parse("list[myInteger > 3]/myInteger"));
+		assertEquals(sequential.evaluate(complex), parallel.evaluate(complex));
+		assertEquals(600, ((List<?>) parallel.evaluate(complex)).size());
+	}
+	
+	public void testStream() throws ParseException, EvaluationException {
+		PathAnalyzer<ComplexContent> pathAnalyzer = new PathAnalyzer<ComplexContent>(new TypesOperationProvider());
+		Test2 test2 = new Test2(new Test(5), 5.5);
+		for (int i = 2; i <= 5; i++) {
+			test2.getList().add(new Test(i));
+		}
+		ComplexContent complex = new BeanInstance<Test2>(test2);
+		TypeVariableOperation operation = (TypeVariableOperation) pathAnalyzer.analyze(QueryParser.getInstance().parse("list[myInteger > 3]/myInteger"));
+		assertEquals(Arrays.asList(new Object[] { 4, 5 }), operation.stream(complex).collect(Collectors.toList()));
+		operation = (TypeVariableOperation) pathAnalyzer.analyze(QueryParser.getInstance().parse("list/myInteger"));
+		assertEquals(4, operation.stream(complex).count());
+		assertTrue(operation.stream(complex).anyMatch(value -> Integer.valueOf(3).equals(value)));
+		operation = (TypeVariableOperation) pathAnalyzer.analyze(QueryParser.getInstance().parse("list[1]/myInteger"));
+		assertEquals(Arrays.asList(new Object[] { 3 }), operation.stream(complex).collect(Collectors.toList()));
+	}
+	
+	public void testOptimizer() throws ParseException, EvaluationException {
+		PathAnalyzer<ComplexContent> pathAnalyzer = new PathAnalyzer<ComplexContent>(new TypesOperationProvider());
+		ComplexContent complex = new BeanInstance<Test2>(new Test2(new Test(5), 5.5));
+		TypeOperation operation = TypeOperationOptimizer.optimize((TypeOperation) pathAnalyzer.analyze(QueryParser.getInstance().parse("test/myInteger + 2 = 7 && (myDouble + test/myInteger)==10.5")), complex.getType());
+		assertTrue((Boolean) operation.evaluate(complex));
+		operation = TypeOperationOptimizer.optimize((TypeOperation) pathAnalyzer.analyze(QueryParser.getInstance().parse("(1 + 2) * 3")), complex.getType());
+		assertEquals(9, ((Number) operation.evaluate(complex)).intValue());
+		// the folded right operand is evaluated first
+		operation = TypeOperationOptimizer.optimize((TypeOperation) pathAnalyzer.analyze(QueryParser.getInstance().parse("test/myInteger > 10 || !false")), complex.getType());
+		assertTrue((Boolean) operation.evaluate(complex));
+		operation = TypeOperationOptimizer.optimize((TypeOperation) pathAnalyzer.analyze(QueryParser.getInstance().parse("myDouble > 100 && 1 + 1 == 2")), complex.getType());
+		assertFalse((Boolean) operation.evaluate(complex));
+	}
+	
+	public void testMembership() throws ParseException, EvaluationException {
+		PathAnalyzer<ComplexContent> pathAnalyzer = new PathAnalyzer<ComplexContent>(new TypesOperationProvider());
+		Test2 test2 = new Test2(new Test(5), 5.5);
+		for (int i = 0; i < 100; i += 2) {
+			test2.getCodes().add(i);
+		}
+		Operation<ComplexContent> operation = pathAnalyzer.analyze(QueryParser.getInstance().parse("test/myInteger # codes"));
+		assertFalse((Boolean) operation.evaluate(new BeanInstance<Test2>(test2)));
+		test2.getTest().setMyInteger(6);
+		assertTrue((Boolean) operation.evaluate(new BeanInstance<Test2>(test2)));
+		// changes between evaluations are always seen
+		test2.getCodes().add(5);
+		test2.getTest().setMyInteger(5);
+		assertTrue((Boolean) operation.evaluate(new BeanInstance<Test2>(test2)));
+	}
+	
+	public void testMembershipInPlaceChange() throws ParseException, EvaluationException {
+		PathAnalyzer<ComplexContent> pathAnalyzer = new PathAnalyzer<ComplexContent>(new TypesOperationProvider());
+		Test2 test2 = new Test2(new Test(5), 5.5);
+		for (int i = 0; i < 10; i++) {
+			test2.getList().add(new Test(i));
+		}
+		for (int i = 0; i < 100; i += 2) {
+			test2.getCodes().add(i);
+		}
+		Operation<ComplexContent> operation = pathAnalyzer.analyze(QueryParser.getInstance().parse("list[myInteger # /codes]/myInteger"));
+		assertEquals(Arrays.asList(new Integer[] { 0, 2, 4, 6, 8 }), operation.evaluate(new BeanInstance<Test2>(test2)));
+		// same collection, same size, different content
+		test2.getCodes().set(0, 1);
+		assertEquals(Arrays.asList(new Integer[] { 1, 2, 4, 6, 8 }), operation.evaluate(new BeanInstance<Test2>(test2)));
+	}
+	
+	public void testMembershipFreshCollection() throws ParseException, EvaluationException {
+		final List<String> misses = new ArrayList<String>();
+		final List<String> hits = new ArrayList<String>();
+		EvaluationListenerFactory.getInstance().setListener(new EvaluationListener() {
+			@Override
+			public void cacheAccessed(String cache, boolean hit) {
+				(hit ? hits : misses).add(cache);
+			}
+		});
+		try {
+			PathAnalyzer<ComplexContent> pathAnalyzer = new PathAnalyzer<ComplexContent>(new TypesOperationProvider());
+			Test2 test2 = new Test2(new Test(5), 5.5);
+			for (int i = 0; i < 50; i++) {
+				test2.getList().add(new Test(i));
+				test2.getCodes().add(i * 2);
+			}
+			// the right operand is calculated anew for every item so it is never indexed
+			Operation<ComplexContent> operation = pathAnalyzer.analyze(QueryParser.getInstance().parse("list[myInteger # /list/myInteger]/myInteger"));
+			assertEquals(50, ((List<?>) operation.evaluate(new BeanInstance<Test2>(test2))).size());
+			assertFalse(misses.contains("membership"));
+			// the same collection for every item is indexed once and reused
+			operation = pathAnalyzer.analyze(QueryParser.getInstance().parse("list[myInteger # /codes]/myInteger"));
+			assertEquals(25, ((List<?>) operation.evaluate(new BeanInstance<Test2>(test2))).size());
+			assertEquals(1, Collections.frequency(misses, "membership"));
+			assertTrue(hits.contains("membership"));
+		}
+		finally {
+			EvaluationListenerFactory.getInstance().setListener(null);
+		}
+	}
+	
+	public void testMembershipEvaluatesOnce() throws ParseException, EvaluationException {
+		final List<TypeOperation> evaluated = new ArrayList<TypeOperation>();
+		EvaluationListenerFactory.getInstance().setListener(new EvaluationListener() {
+			@Override
+			public void evaluated(TypeOperation operation, ComplexContent context, long nanos, boolean failed) {
+				evaluated.add(operation);
+			}
+		});
+		try {
+			PathAnalyzer<ComplexContent> pathAnalyzer = new PathAnalyzer<ComplexContent>(new TypesOperationProvider());
+			Test2 test2 = new Test2(new Test(5), 5.5);
+			for (int i = 0; i < 10; i++) {
+				test2.getList().add(new Test(i));
+			}
+			TypeVariableOperation operation = (TypeVariableOperation) pathAnalyzer.analyze(QueryParser.getInstance().parse("list[myInteger # /list/myInteger]/myInteger"));
+			TypeClassicOperation filter = null;
+			for (QueryPart part : operation.getParts()) {
+				if (part.getContent() instanceof TypeClassicOperation) {
+					filter = (TypeClassicOperation) part.getContent();
+				}
+			}
+			Object right = filter.getParts().get(2).getContent();
+			assertEquals(10, ((List<?>) operation.evaluate(new BeanInstance<Test2>(test2))).size());
+			// a small collection is scanned with the values that were already evaluated, once per item
+			int evaluations = 0;
+			for (TypeOperation child : evaluated) {
+				if (child == right) {
+					evaluations++;
+				}
+			}
+			assertEquals(10, evaluations);
+		}
+		finally {
+			EvaluationListenerFactory.getInstance().setListener(null);
+		}
+	}
+	
+	public void testOperationCache() throws ParseException, EvaluationException {
+		TypesOperationProvider provider = new TypesOperationProvider();
+		ComplexContent complex = new BeanInstance<Test2>(new Test2(new Test(5), 5.5));
+		TypeOperation operation = provider.getOperation("test/myInteger + 2", complex.getType());
+		assertSame(operation, provider.getOperation("test/myInteger + 2", complex.getType()));
+		assertEquals(1, provider.getCacheHits());
+		assertEquals(1, provider.getCacheMisses());
+		assertEquals(7, operation.evaluate(complex));
+		assertTrue(provider.validate("test/myInteger + 2", complex.getType()).isEmpty());
+		// other settings mean another operation
+		provider.setParallelFilterThreshold(100);
+		assertFalse(operation == provider.getOperation("test/myInteger + 2", complex.getType()));
+		provider.invalidate(complex.getType());
+		assertEquals(0, provider.getCacheSize());
+	}
+	
+	public void testOperationCacheDependencies() throws ParseException {
+		TypesOperationProvider provider = new TypesOperationProvider();
+		ComplexType type = new BeanInstance<Test2>(new Test2(new Test(5), 5.5)).getType();
+		ComplexType child = (ComplexType) type.get("test").getType();
+		TypeVariableOperation operation = (TypeVariableOperation) provider.getOperation("test/myInteger", type);
+		provider.getOperation("myDouble", type);
+		TypeResolution resolution = operation.getResolution(type);
+		// only the operation that looked into the child type is dropped and its typing is cleared
+		provider.invalidate(child);
+		assertEquals(1, provider.getCacheSize());
+		assertFalse(operation == provider.getOperation("test/myInteger", type));
+		assertFalse(resolution == operation.getResolution(type));
+	}
+	
+	public void testListener() throws ParseException, EvaluationException {
+		final List<TypeOperation> evaluated = new ArrayList<TypeOperation>();
+		final List<String> misses = new ArrayList<String>();
+		EvaluationListenerFactory.getInstance().setListener(new EvaluationListener() {
+			@Override
+			public void evaluated(TypeOperation operation, ComplexContent context, long nanos, boolean failed) {
+				evaluated.add(operation);
+			}
+			@Override
+			public void cacheAccessed(String cache, boolean hit) {
+				if (!hit) {
+					misses.add(cache);
+				}
+			}
+		});
+		try {
+			TypesOperationProvider provider = new TypesOperationProvider();
+			ComplexContent complex = new BeanInstance<Test2>(new Test2(new Test(5), 5.5));
+			TypeOperation operation = provider.getOperation("test/myInteger + 2", complex.getType());
+			assertEquals(7, operation.evaluate(complex));
+			assertTrue(evaluated.contains(operation));
+			assertTrue(misses.contains("operation"));
+		}
+		finally {
+			EvaluationListenerFactory.getInstance().setListener(null);
+		}
+	}
+	
+	public void testResolve() throws ParseException, EvaluationException {
+		PathAnalyzer<ComplexContent> pathAnalyzer = new PathAnalyzer<ComplexContent>(new TypesOperationProvider());
+		Test2 test2 = new Test2(new Test(5), 5.5);
+		test2.getList().add(new Test(2));
+		test2.getList().add(new Test(3));
+		ComplexContent complex = new BeanInstance<Test2>(test2);
+		TypeVariableOperation operation = (TypeVariableOperation) pathAnalyzer.analyze(QueryParser.getInstance().parse("list[1]/myInteger"));
+		assertEquals("list[1]/myInteger", operation.resolve(complex));
+		ResolvedPath path = operation.resolvePath(complex);
+		assertEquals(2, path.size());
+		assertEquals(1, path.getIndex(0));
+		assertEquals(-1, path.getIndex(1));
+		// paths that don't exist yet are resolved as well
+		operation = (TypeVariableOperation) pathAnalyzer.analyze(QueryParser.getInstance().parse("list[test/myInteger]/myInteger"));
+		assertEquals("list[5]/myInteger", operation.resolve(complex, new StringBuilder()).toString());
+	}
+	
+	public void testSet() throws ParseException, EvaluationException {
+		PathAnalyzer<ComplexContent> pathAnalyzer = new PathAnalyzer<ComplexContent>(new TypesOperationProvider());
+		Test2 test2 = new Test2(new Test(5), 5.5);
+		test2.getList().add(new Test(2));
+		test2.getList().add(new Test(3));
+		ComplexContent complex = new BeanInstance<Test2>(test2);
+		((TypeVariableOperation) pathAnalyzer.analyze(QueryParser.getInstance().parse("test/myInteger"))).set(complex, 7);
+		assertEquals(7, test2.getTest().getMyInteger());
+		((TypeVariableOperation) pathAnalyzer.analyze(QueryParser.getInstance().parse("list[1]/myInteger"))).set(complex, 9);
+		assertEquals(9, test2.getList().get(1).getMyInteger());
+		assertEquals(2, test2.getList().get(0).getMyInteger());
+	}
+	
+	public void testSetCreatesMissing() throws ParseException, EvaluationException {
+		PathAnalyzer<ComplexContent> pathAnalyzer = new PathAnalyzer<ComplexContent>(new TypesOperationProvider());
+		Test2 test2 = new Test2(null, 5.5);
+		test2.getList().add(new Test(2));
+		ComplexContent complex = new BeanInstance<Test2>(test2);
+		// a missing child is created
+		((TypeVariableOperation) pathAnalyzer.analyze(QueryParser.getInstance().parse("test/myInteger"))).set(complex, 7);
+		assertNotNull(test2.getTest());
+		assertEquals(7, test2.getTest().getMyInteger());
+		// a missing item is created at the requested index
+		((TypeVariableOperation) pathAnalyzer.analyze(QueryParser.getInstance().parse("list[2]/myInteger"))).set(complex, 9);
+		assertEquals(3, test2.getList().size());
+		assertEquals(9, test2.getList().get(2).getMyInteger());
+		assertEquals(2, test2.getList().get(0).getMyInteger());
+		// a simple value can not have children
+		try {
+			((TypeVariableOperation) pathAnalyzer.analyze(QueryParser.getInstance().parse("test/name/first"))).set(complex, "value");
+			fail("A simple type can not be created as a parent");
+		}
+		catch (EvaluationException e) {
+			assertTrue(e.getMessage().startsWith("Can not create 'name'"));
+		}
+	}
+	
 	public void testIncrement() throws EvaluationException, ParseException {
 		PathAnalyzer<ComplexContent> pathAnalyzer = new PathAnalyzer<ComplexContent>(new TypesOperationProvider());
 		assertEquals(2, pathAnalyzer.analyze(QueryParser.getInstance().parse("1++")).evaluate(null));
@@ -99,10 +478,99 @@ public class TestQueryParser extends TestCase {
 		assertEquals(true, pathAnalyzer.analyze(QueryParser.getInstance().parse("!false & true && !false")).evaluate(null));
 	}
 	
+	public void testEpsilonCache() throws EvaluationException, ParseException {
+		final List<String> hits = new ArrayList<String>();
+		final List<String> misses = new ArrayList<String>();
+		final List<TypeOperation> resolved = new ArrayList<TypeOperation>();
+		EvaluationListenerFactory.getInstance().setListener(new EvaluationListener() {
+			@Override
+			public void cacheAccessed(String cache, boolean hit) {
+				(hit ? hits : misses).add(cache);
+			}
+			@Override
+			public void resolvedAtRuntime(TypeOperation operation, ComplexType context) {
+				resolved.add(operation);
+			}
+		});
+		try {
+			PathAnalyzer<ComplexContent> pathAnalyzer = new PathAnalyzer<ComplexContent>(new TypesOperationProvider());
+			TypeOperation operation = (TypeOperation) pathAnalyzer.analyze(QueryParser.getInstance().parse("myDouble == 5.5"));
+			ComplexContent complex = new BeanInstance<Test2>(new Test2(new Test(5), 5.5));
+			assertEquals(true, operation.evaluate(complex));
+			assertEquals(1, Collections.frequency(misses, "epsilon"));
+			assertEquals(1, resolved.size());
+			// no epsilon is defined for the operands, that outcome is cached as well
+			assertEquals(true, operation.evaluate(complex));
+			assertEquals(1, Collections.frequency(misses, "epsilon"));
+			assertEquals(1, Collections.frequency(hits, "epsilon"));
+			assertEquals(1, resolved.size());
+			// invalidating resolves it again
+			operation.invalidate();
+			assertEquals(true, operation.evaluate(complex));
+			assertEquals(2, Collections.frequency(misses, "epsilon"));
+			assertEquals(2, resolved.size());
+		}
+		finally {
+			EvaluationListenerFactory.getInstance().setListener(null);
+		}
+	}
+	
 	public void testMatches() throws EvaluationException, ParseException {
 		PathAnalyzer<ComplexContent> pathAnalyzer = new PathAnalyzer<ComplexContent>(new TypesOperationProvider());
 		assertEquals(true, pathAnalyzer.analyze(QueryParser.getInstance().parse("'dude' ~ '[a-z]+'")).evaluate(null));
 		assertEquals(false, pathAnalyzer.analyze(QueryParser.getInstance().parse("'dude'~ '[^\\w]+'")).evaluate(null));
+		assertEquals(true, pathAnalyzer.analyze(QueryParser.getInstance().parse("'dude' !~ '[0-9]+'")).evaluate(null));
+	}
+	
+	public void testDynamicMatches() throws EvaluationException, ParseException {
+		final List<String> hits = new ArrayList<String>();
+		final List<String> misses = new ArrayList<String>();
+		EvaluationListenerFactory.getInstance().setListener(new EvaluationListener() {
+			@Override
+			public void cacheAccessed(String cache, boolean hit) {
+				(hit ? hits : misses).add(cache);
+			}
+		});
+		try {
+			PathAnalyzer<ComplexContent> pathAnalyzer = new PathAnalyzer<ComplexContent>(new TypesOperationProvider());
+			Operation<ComplexContent> operation = pathAnalyzer.analyze(QueryParser.getInstance().parse("'dude' ~ name"));
+			Test test = new Test(5);
+			// the pattern cache is shared so we use a pattern no other test uses
+			test.setName("[a-z]+|" + System.nanoTime());
+			ComplexContent complex = new BeanInstance<Test>(test);
+			assertEquals(true, operation.evaluate(complex));
+			assertEquals(1, Collections.frequency(misses, "regex"));
+			// the compiled pattern is reused
+			assertEquals(true, operation.evaluate(complex));
+			assertEquals(1, Collections.frequency(hits, "regex"));
+			// a different pattern is picked up
+			test.setName("[0-9]+|" + System.nanoTime());
+			assertEquals(false, operation.evaluate(complex));
+			assertEquals(2, Collections.frequency(misses, "regex"));
+			
+			// an invalid pattern is reported and never cached
+			test.setName("[a-z");
+			for (int i = 0; i < 2; i++) {
+				try {
+					operation.evaluate(complex);
+					fail("An invalid pattern can not be evaluated");
+				}
+				catch (Exception e) {
+					// expected
+				}
+			}
+			assertEquals(4, Collections.frequency(misses, "regex"));
+			
+			// null values never match and other values are converted to a string
+			test.setName(null);
+			assertEquals(false, operation.evaluate(complex));
+			assertEquals(false, pathAnalyzer.analyze(QueryParser.getInstance().parse("name ~ '[a-z]+'")).evaluate(complex));
+			assertEquals(true, pathAnalyzer.analyze(QueryParser.getInstance().parse("name !~ '[a-z]+'")).evaluate(complex));
+			assertEquals(true, pathAnalyzer.analyze(QueryParser.getInstance().parse("myInteger ~ '[0-9]+'")).evaluate(complex));
+		}
+		finally {
+			EvaluationListenerFactory.getInstance().setListener(null);
+		}
 	}
 	
 	public void testIncorrect() throws ParseException {
@@ -124,9 +592,186 @@ public class TestQueryParser extends TestCase {
 		}
 	}
 	
+	public void testBeanAccessor() throws EvaluationException {
+		JavaBeanAccessor accessor = new JavaBeanAccessor();
+		Test2 test2 = new Test2(new Test(5), 5.5);
+		assertTrue(accessor.has(test2, "myDouble"));
+		assertFalse(accessor.has(test2, "myDouble2"));
+		// simple values are read and written directly
+		assertEquals(5.5, accessor.get(test2, "myDouble"));
+		accessor.set(test2, "myDouble", 6.5);
+		assertEquals(6.5, test2.getMyDouble());
+		assertEquals(5, accessor.get(test2.getTest(), "myInteger"));
+		accessor.set(test2.getTest(), "myInteger", 6);
+		assertEquals(6, test2.getTest().getMyInteger());
+		// anything else goes through the bean instance
+		assertNotNull(accessor.get(test2, "test"));
+		assertNull(accessor.get(test2, "myDouble2"));
+		// a value that needs conversion is not set directly
+		accessor.set(test2.getTest(), "myInteger", 7l);
+		assertEquals(7, test2.getTest().getMyInteger());
+	}
+	
+	public void testListChildren() {
+		ComplexContentAccessor accessor = new ComplexContentAccessor();
+		ComplexContent complex = new BeanInstance<Test2>(new Test2(new Test(5), 5.5));
+		Collection<String> names = accessor.list(complex);
+		assertTrue(names.contains("myDouble"));
+		assertTrue(names.contains("test"));
+		assertTrue(names.contains("list"));
+		// the names are cached for the type and shared
+		assertSame(names, accessor.list(complex));
+		try {
+			names.add("other");
+			fail("The cached names can not be modified");
+		}
+		catch (UnsupportedOperationException e) {
+			// expected
+		}
+		ComplexContentAccessor.invalidate(complex.getType());
+		Collection<String> listed = accessor.list(complex);
+		assertFalse(names == listed);
+		assertEquals(names, listed);
+	}
+	
+	public void testMethodCoercion() throws ParseException, EvaluationException {
+		final List<String> hits = new ArrayList<String>();
+		final List<String> misses = new ArrayList<String>();
+		EvaluationListenerFactory.getInstance().setListener(new EvaluationListener() {
+			@Override
+			public void cacheAccessed(String cache, boolean hit) {
+				(hit ? hits : misses).add(cache);
+			}
+		});
+		try {
+			PathAnalyzer<ComplexContent> pathAnalyzer = new PathAnalyzer<ComplexContent>(new TypesOperationProvider());
+			ComplexContent complex = new BeanInstance<Numbers>(new Numbers(5, 6, 7.5));
+			String prefix = TestQueryParser.class.getName() + ".";
+			String [][] expected = new String[][] {
+				{ "asInt(myLong)", "int:6" },
+				{ "asLong(myInteger)", "long:5" },
+				{ "asShort(myInteger)", "short:5" },
+				{ "asDouble(myInteger)", "double:5.0" },
+				{ "asFloat(myLong)", "float:6.0" }
+			};
+			for (String [] query : expected) {
+				TypeOperation operation = (TypeOperation) pathAnalyzer.analyze(QueryParser.getInstance().parse(prefix + query[0]));
+				// without a plan the regular evaluation is used
+				assertEquals(query[1], operation.evaluate(complex));
+				assertTrue(misses.remove("coercion"));
+				assertFalse(hits.contains("coercion"));
+				// compiling builds the plan, the method is then called with the coerced arguments
+				TypeOperationCompiler.compile(operation, complex.getType());
+				assertEquals(query[1], operation.evaluate(complex));
+				assertTrue(hits.remove("coercion"));
+				assertFalse(misses.contains("coercion"));
+			}
+		}
+		finally {
+			EvaluationListenerFactory.getInstance().setListener(null);
+		}
+	}
+	
+	public void testNestedMethods() throws ParseException, EvaluationException {
+		final List<String> hits = new ArrayList<String>();
+		EvaluationListenerFactory.getInstance().setListener(new EvaluationListener() {
+			@Override
+			public void cacheAccessed(String cache, boolean hit) {
+				if (hit) {
+					hits.add(cache);
+				}
+			}
+		});
+		try {
+			PathAnalyzer<ComplexContent> pathAnalyzer = new PathAnalyzer<ComplexContent>(new TypesOperationProvider());
+			ComplexContent complex = new BeanInstance<Numbers>(new Numbers(5, 6, 7.5));
+			String prefix = TestQueryParser.class.getName() + ".";
+			TypeOperation operation = (TypeOperation) pathAnalyzer.analyze(QueryParser.getInstance().parse(prefix + "asLong(" + prefix + "twice(myInteger))"));
+			TypeOperationCompiler.compile(operation, complex.getType());
+			assertEquals("long:10", operation.evaluate(complex));
+			// both the outer and the nested method are called through their method handle
+			assertEquals(2, Collections.frequency(hits, "coercion"));
+		}
+		finally {
+			EvaluationListenerFactory.getInstance().setListener(null);
+		}
+	}
+	
+	public void testMethodRevalidation() throws ParseException, EvaluationException {
+		final List<String> hits = new ArrayList<String>();
+		EvaluationListenerFactory.getInstance().setListener(new EvaluationListener() {
+			@Override
+			public void cacheAccessed(String cache, boolean hit) {
+				if (hit) {
+					hits.add(cache);
+				}
+			}
+		});
+		try {
+			PathAnalyzer<ComplexContent> pathAnalyzer = new PathAnalyzer<ComplexContent>(new TypesOperationProvider());
+			ComplexContent complex = new BeanInstance<Numbers>(new Numbers(5, 6, 7.5));
+			BeanType<Test> other = new BeanType<Test>(Test.class);
+			TypeOperation operation = (TypeOperation) pathAnalyzer.analyze(QueryParser.getInstance().parse(TestQueryParser.class.getName() + ".asLong(myInteger)"));
+			assertTrue(operation.validate(complex.getType()).isEmpty());
+			// validating the same type over and over (e.g. while editing) replaces its plan instead of pushing out the plans of other types
+			for (int i = 0; i < 20; i++) {
+				assertTrue(operation.validate(other).isEmpty());
+			}
+			assertEquals("long:5", operation.evaluate(complex));
+			assertTrue(hits.contains("coercion"));
+		}
+		finally {
+			EvaluationListenerFactory.getInstance().setListener(null);
+		}
+	}
+	
+	public void testMethodFallback() throws ParseException, EvaluationException {
+		PathAnalyzer<ComplexContent> pathAnalyzer = new PathAnalyzer<ComplexContent>(new TypesOperationProvider());
+		Numbers numbers = new Numbers(5, 6, 7.0);
+		ComplexContent complex = new BeanInstance<Numbers>(numbers);
+		String prefix = TestQueryParser.class.getName() + ".";
+		// a double argument fits the plan and is passed through the method handle as is
+		TypeOperation operation = TypeOperationCompiler.compile((TypeOperation) pathAnalyzer.analyze(QueryParser.getInstance().parse(prefix + "asDouble(myDouble)")), complex.getType());
+		assertEquals("double:7.0", operation.evaluate(complex));
+		assertEquals(1, numbers.getReads());
+		// a double for an int parameter is not part of the plan, it is converted without evaluating the argument again
+		operation = TypeOperationCompiler.compile((TypeOperation) pathAnalyzer.analyze(QueryParser.getInstance().parse(prefix + "asInt(myDouble)")), complex.getType());
+		assertEquals("int:7", operation.evaluate(complex));
+		assertEquals(2, numbers.getReads());
+	}
+	
+	public static String asInt(int value) {
+		return "int:" + value;
+	}
+	
+	public static String asLong(long value) {
+		return "long:" + value;
+	}
+	
+	public static long twice(long value) {
+		return value * 2;
+	}
+	
+	public static String asShort(short value) {
+		return "short:" + value;
+	}
+	
+	public static String asDouble(double value) {
+		return "double:" + value;
+	}
+	
+	public static String asFloat(float value) {
+		return "float:" + value;
+	}
+	
 	public static class Test {
 		private int myInteger;
+		private String name;
 
+		public Test() {
+			// for bean instantiation
+		}
+		
 		public Test(int myInteger) {
 			this.myInteger = myInteger;
 		}
@@ -138,6 +783,14 @@ public class TestQueryParser extends TestCase {
 		public void setMyInteger(int myInteger) {
 			this.myInteger = myInteger;
 		}
+
+		public String getName() {
+			return name;
+		}
+
+		public void setName(String name) {
+			this.name = name;
+		}
 		@Override
 		public boolean equals(Object object) {
 			return object instanceof Test && ((Test) object).myInteger == myInteger;
@@ -148,6 +801,7 @@ public class TestQueryParser extends TestCase {
 		private double myDouble;
 		private Test test;
 		private List<Test> list = new ArrayList<Test>();
+		private List<Integer> codes = new ArrayList<Integer>();
 		
 		public Test2(Test test, double myDouble) {
 			this.test = test;
@@ -173,5 +827,39 @@ public class TestQueryParser extends TestCase {
 		public List<Test> getList() {
 			return list;
 		}
+		
+		public List<Integer> getCodes() {
+			return codes;
+		}
+	}
+	
+	public static class Numbers {
+		private int myInteger;
+		private long myLong;
+		private double myDouble;
+		private int reads;
+		
+		public Numbers(int myInteger, long myLong, double myDouble) {
+			this.myInteger = myInteger;
+			this.myLong = myLong;
+			this.myDouble = myDouble;
+		}
+
+		public int getMyInteger() {
+			return myInteger;
+		}
+
+		public long getMyLong() {
+			return myLong;
+		}
+
+		public double getMyDouble() {
+			reads++;
+			return myDouble;
+		}
+
+		public int getReads() {
+			return reads;
+		}
 	}
 }
@@ -18,13 +18,24 @@
 package be.nabu.libs.evaluator.types;
 
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
 import be.nabu.libs.evaluator.PathAnalyzer;
 import be.nabu.libs.evaluator.QueryParser;
 import be.nabu.libs.evaluator.types.TestQueryParser.Test2;
+import be.nabu.libs.evaluator.types.api.EvaluationListener;
 import be.nabu.libs.evaluator.types.api.TypeOperation;
+import be.nabu.libs.evaluator.types.operations.BulkValidator;
+import be.nabu.libs.evaluator.types.operations.EvaluationListenerFactory;
+import be.nabu.libs.evaluator.types.operations.TypeVariableOperation;
+import be.nabu.libs.evaluator.types.operations.ValidationCache;
 import be.nabu.libs.evaluator.types.operations.TypesOperationProvider;
 import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.api.SimpleType;
 import be.nabu.libs.types.java.BeanType;
 import junit.framework.TestCase;
 
@@ -57,4 +68,150 @@ public class TestQueryValidation extends TestCase {
 		operation = (TypeOperation) pathAnalyzer.analyze(QueryParser.getInstance().parse("list[myInteger > true]/myNonExistentRecord/something"));
 		assertEquals(1, operation.validate(new BeanType<Test2>(Test2.class)).size());
 	}
+	
+	public void testResolution() throws ParseException {
+		PathAnalyzer<ComplexContent> pathAnalyzer = new PathAnalyzer<ComplexContent>(new TypesOperationProvider());
+		BeanType<Test2> type = new BeanType<Test2>(Test2.class);
+		TypeVariableOperation operation = (TypeVariableOperation) pathAnalyzer.analyze(QueryParser.getInstance().parse("list[myInteger > 3]/myInteger"));
+		// the typing is only done once per type
+		assertSame(operation.getResolution(type), operation.getResolution(type));
+		// the filter turns the result into a list
+		assertNotNull(operation.getReturnCollectionHandler(type));
+		
+		operation = (TypeVariableOperation) pathAnalyzer.analyze(QueryParser.getInstance().parse("test/myInteger"));
+		assertNull(operation.getReturnCollectionHandler(type));
+	}
+	
+	public void testConcurrentValidation() throws InterruptedException {
+		final BeanType<Test2> type = new BeanType<Test2>(Test2.class);
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+		// the nested filters push their own context, a shared context would leak it into the other thread
+		String [] queries = new String [] { "list[myInteger > 3]/myInteger", "test[myInteger3 > 3]/myInteger2" };
+		final int [] expected = new int [] { 0, 3 };
+		Thread [] threads = new Thread[queries.length];
+		for (int i = 0; i < queries.length; i++) {
+			final String query = queries[i];
+			final int messages = expected[i];
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						PathAnalyzer<ComplexContent> pathAnalyzer = new PathAnalyzer<ComplexContent>(new TypesOperationProvider());
+						for (int j = 0; j < 500; j++) {
+							TypeOperation operation = (TypeOperation) pathAnalyzer.analyze(QueryParser.getInstance().parse(query));
+							assertEquals(messages, operation.validate(type).size());
+						}
+					}
+					catch (Throwable e) {
+						failures.add(e);
+					}
+				}
+			});
+			threads[i].start();
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertTrue(failures.isEmpty());
+	}
+	
+	public void testValidationCache() throws ParseException {
+		PathAnalyzer<ComplexContent> pathAnalyzer = new PathAnalyzer<ComplexContent>(new TypesOperationProvider());
+		BeanType<Test2> type = new BeanType<Test2>(Test2.class);
+		ValidationCache cache = new ValidationCache();
+		TypeOperation operation = (TypeOperation) pathAnalyzer.analyze(QueryParser.getInstance().parse("test[myInteger > 3]/myInteger2"));
+		assertEquals(2, cache.validate(operation, type).size());
+		assertSame(cache.validate(operation, type), cache.validate(operation, type));
+		assertEquals(1, cache.size());
+		cache.invalidate(type);
+		assertEquals(0, cache.size());
+	}
+	
+	public void testDependencies() throws ParseException {
+		PathAnalyzer<ComplexContent> pathAnalyzer = new PathAnalyzer<ComplexContent>(new TypesOperationProvider());
+		BeanType<Test2> type = new BeanType<Test2>(Test2.class);
+		ValidationCache cache = new ValidationCache();
+		TypeOperation child = (TypeOperation) pathAnalyzer.analyze(QueryParser.getInstance().parse("test/myInteger"));
+		TypeOperation root = (TypeOperation) pathAnalyzer.analyze(QueryParser.getInstance().parse("myDouble"));
+		assertTrue(cache.validate(child, type).isEmpty());
+		assertTrue(cache.validate(root, type).isEmpty());
+		final List<TypeOperation> validated = new ArrayList<TypeOperation>();
+		EvaluationListenerFactory.getInstance().setListener(new EvaluationListener() {
+			@Override
+			public void validated(TypeOperation operation, ComplexType context, long nanos, int messages) {
+				validated.add(operation);
+			}
+		});
+		try {
+			// only the operation that looked into the child type is validated again
+			assertTrue(cache.revalidate((ComplexType) type.get("test").getType()).isEmpty());
+			assertTrue(validated.contains(child));
+			assertFalse(validated.contains(root));
+		}
+		finally {
+			EvaluationListenerFactory.getInstance().setListener(null);
+		}
+		// the revalidated entry is cached again
+		assertEquals(2, cache.size());
+		cache.invalidate((ComplexType) type.get("test").getType());
+		assertEquals(1, cache.size());
+		cache.invalidate(type);
+		assertEquals(0, cache.size());
+	}
+	
+	public void testMethodDependencies() throws ParseException {
+		PathAnalyzer<ComplexContent> pathAnalyzer = new PathAnalyzer<ComplexContent>(new TypesOperationProvider());
+		BeanType<Test2> type = new BeanType<Test2>(Test2.class);
+		ComplexType child = (ComplexType) type.get("test").getType();
+		// the child type is only used to type the argument of the method
+		TypeOperation operation = (TypeOperation) pathAnalyzer.analyze(QueryParser.getInstance().parse(TestQueryParser.class.getName() + ".asLong(test/myInteger)"));
+		ValidationCache first = new ValidationCache();
+		assertTrue(first.validate(operation, type).isEmpty());
+		// the typing of the argument is now cached in the operation, the dependency is still recorded
+		ValidationCache second = new ValidationCache();
+		assertTrue(second.validate(operation, type).isEmpty());
+		second.invalidate(child);
+		assertEquals(0, second.size());
+		first.invalidate(child);
+		assertEquals(0, first.size());
+	}
+	
+	public void testOperators() throws ParseException {
+		PathAnalyzer<ComplexContent> pathAnalyzer = new PathAnalyzer<ComplexContent>(new TypesOperationProvider());
+		BeanType<Test2> type = new BeanType<Test2>(Test2.class);
+		// the left operand of the first operator determines the type of a calculation
+		TypeOperation operation = (TypeOperation) pathAnalyzer.analyze(QueryParser.getInstance().parse("myDouble + 1"));
+		assertEquals(Double.class, ((SimpleType<?>) operation.getReturnType(type)).getInstanceClass());
+		operation = (TypeOperation) pathAnalyzer.analyze(QueryParser.getInstance().parse("test/myInteger * 2 - 1"));
+		assertEquals(Integer.class, ((SimpleType<?>) operation.getReturnType(type)).getInstanceClass());
+		// every operator is validated
+		operation = (TypeOperation) pathAnalyzer.analyze(QueryParser.getInstance().parse("test/myInteger > 3 && myDouble < 6"));
+		assertEquals(Boolean.class, ((SimpleType<?>) operation.getReturnType(type)).getInstanceClass());
+		assertTrue(operation.validate(type).isEmpty());
+		operation = (TypeOperation) pathAnalyzer.analyze(QueryParser.getInstance().parse("test/myInteger > 3 && myDouble < 6 && test/myInteger2 > 1"));
+		assertFalse(operation.validate(type).isEmpty());
+	}
+	
+	public void testBulkValidation() throws ParseException {
+		BeanType<Test2> type = new BeanType<Test2>(Test2.class);
+		List<BulkValidator.Rule> rules = new ArrayList<BulkValidator.Rule>();
+		for (int i = 0; i < 50; i++) {
+			rules.add(new BulkValidator.Rule("test/myInteger > " + i, type));
+		}
+		rules.add(new BulkValidator.Rule("test/myInteger2", type));
+		TypesOperationProvider provider = new TypesOperationProvider();
+		provider.setMaxCachedOperations(10);
+		BulkValidator validator = new BulkValidator(provider);
+		BulkValidator.Report report = validator.validate(rules);
+		assertEquals(51, report.getResults().size());
+		assertEquals(1, report.getInvalid().size());
+		assertSame(rules.get(50), report.getInvalid().get(0).getRule());
+		// the catalog does not touch the cache of the provider but the whole catalog is kept for reuse
+		assertEquals(0, provider.getCacheSize());
+		assertEquals(51, validator.getProvider().getCacheSize());
+		assertSame(report.getResults().get(0).getOperation(), validator.getProvider().getOperation("test/myInteger > 0", type));
+	}
 }